@@ -16,6 +16,9 @@ import com.distelli.europa.guice.AjaxHelperModule;
 import com.distelli.europa.guice.EuropaInjectorModule;
 import com.distelli.europa.handlers.StaticContentErrorHandler;
 import com.distelli.europa.monitor.DispatchRepoMonitorTasks;
+import com.distelli.europa.tasks.DispatchCollectBlobsTask;
+import com.distelli.europa.tasks.DispatchReapUploadsTask;
+import com.distelli.europa.util.BufferPool;
 import com.distelli.europa.util.CmdLineArgs;
 import com.distelli.objectStore.impl.ObjectStoreModule;
 import com.distelli.persistence.impl.PersistenceModule;
@@ -61,6 +64,12 @@ public class Europa
     protected SslContextFactory _sslContextFactory;
     @Inject
     protected DispatchRepoMonitorTasks _dispatchRepoMonitorTasks;
+    @Inject
+    protected DispatchReapUploadsTask _dispatchReapUploadsTask;
+    @Inject
+    protected DispatchCollectBlobsTask _dispatchCollectBlobsTask;
+    @Inject
+    protected BufferPool _bufferPool;
 
     protected RouteMatcher _webappRouteMatcher = null;
     protected RouteMatcher _registryApiRouteMatcher = null;
@@ -149,6 +158,9 @@ public class Europa
     public void start()
     {
         _dispatchRepoMonitorTasks.schedule();
+        _dispatchReapUploadsTask.schedule();
+        _dispatchCollectBlobsTask.schedule();
+        _bufferPool.scheduleStatsLogging();
 
         WebServlet<EuropaRequestContext> servlet =
             new WebServlet<EuropaRequestContext>(_webappRouteMatcher, _requestHandlerFactory);
@@ -31,6 +31,30 @@ public class EuropaConfiguration
     protected int dbMaxPoolSize = 2;
     @Getter @Setter
     protected EuropaStage stage;
+    // Local disk cache of registry blobs, disabled if blobCacheDir is null:
+    @Getter @Setter
+    protected String blobCacheDir;
+    @Getter @Setter
+    protected long blobCacheMaxBytes = DEFAULT_BLOB_CACHE_MAX_BYTES;
+
+    // In memory cache of manifest content, disabled if manifestCacheMaxBytes is 0:
+    @Getter @Setter
+    protected long manifestCacheMaxBytes = DEFAULT_MANIFEST_CACHE_MAX_BYTES;
+    // Keep the manifest cache outside of the java heap:
+    @Getter @Setter
+    protected boolean manifestCacheOffHeap = false;
+    // Larger manifest pushes are rejected, manifests are buffered in memory:
+    @Getter @Setter
+    protected long manifestMaxBytes = DEFAULT_MANIFEST_MAX_BYTES;
+    // Storage quotas enforced on pushes, no quota if 0:
+    @Getter @Setter
+    protected long repoQuotaBytes = 0;
+    @Getter @Setter
+    protected long domainQuotaBytes = 0;
+
+    public static final long DEFAULT_BLOB_CACHE_MAX_BYTES = 10L*1024*1024*1024;
+    public static final long DEFAULT_MANIFEST_CACHE_MAX_BYTES = 64L*1024*1024;
+    public static final long DEFAULT_MANIFEST_MAX_BYTES = 4L*1024*1024;
 
     public static enum EuropaStage {
         alpha,
@@ -72,6 +96,13 @@ public class EuropaConfiguration
         config.setDbPass(dbPass);
         config.setDbPrefix(dbPrefix);
         config.setDbMaxPoolSize(dbPoolSize);
+        config.setBlobCacheDir(getEnvVar("EUROPA_BLOB_CACHE_DIR", false));
+        config.setBlobCacheMaxBytes(getLongEnvVar("EUROPA_BLOB_CACHE_SIZE", DEFAULT_BLOB_CACHE_MAX_BYTES));
+        config.setManifestCacheMaxBytes(getLongEnvVar("EUROPA_MANIFEST_CACHE_SIZE", DEFAULT_MANIFEST_CACHE_MAX_BYTES));
+        config.setManifestCacheOffHeap(getBooleanEnvVar("EUROPA_MANIFEST_CACHE_OFF_HEAP", false));
+        config.setManifestMaxBytes(getLongEnvVar("EUROPA_MANIFEST_MAX_SIZE", DEFAULT_MANIFEST_MAX_BYTES));
+        config.setRepoQuotaBytes(getLongEnvVar("EUROPA_REPO_QUOTA_SIZE", 0));
+        config.setDomainQuotaBytes(getLongEnvVar("EUROPA_DOMAIN_QUOTA_SIZE", 0));
         config.validate();
         return config;
     }
@@ -95,6 +126,27 @@ public class EuropaConfiguration
         return null;
     }
 
+    private static final long getLongEnvVar(String varName, long defaultValue)
+    {
+        String value = getEnvVar(varName, false);
+        if(value == null || value.trim().isEmpty())
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException ex) {
+            log.error("Invalid Value ["+value+"] for Env Variable: "+varName);
+            return defaultValue;
+        }
+    }
+
+    private static final boolean getBooleanEnvVar(String varName, boolean defaultValue)
+    {
+        String value = getEnvVar(varName, false);
+        if(value == null || value.trim().isEmpty())
+            return defaultValue;
+        return Boolean.parseBoolean(value.trim());
+    }
+
     public static final EuropaConfiguration fromFile(File configFile)
     {
         try {
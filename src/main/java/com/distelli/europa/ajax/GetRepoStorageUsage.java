@@ -0,0 +1,56 @@
+/*
+  $Id: $
+  @file GetRepoStorageUsage.java
+  @brief Contains the GetRepoStorageUsage.java class
+*/
+package com.distelli.europa.ajax;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.distelli.europa.EuropaRequestContext;
+import com.distelli.europa.db.ContainerRepoDb;
+import com.distelli.europa.db.StorageUsageDb;
+import com.distelli.europa.models.ContainerRepo;
+import com.distelli.europa.util.PermissionCheck;
+import com.distelli.webserver.AjaxClientException;
+import com.distelli.webserver.AjaxHelper;
+import com.distelli.webserver.AjaxRequest;
+import com.distelli.webserver.HTTPMethod;
+
+import lombok.extern.log4j.Log4j;
+
+@Log4j
+@Singleton
+public class GetRepoStorageUsage extends AjaxHelper<EuropaRequestContext>
+{
+    @Inject
+    protected ContainerRepoDb _repoDb;
+    @Inject
+    protected StorageUsageDb _storageUsageDb;
+    @Inject
+    protected PermissionCheck _permissionCheck;
+
+    public GetRepoStorageUsage()
+    {
+        this.supportedHttpMethods.add(HTTPMethod.GET);
+    }
+
+    /**
+       Params:
+       - repoId (required)
+    */
+    public Object get(AjaxRequest ajaxRequest, EuropaRequestContext requestContext)
+    {
+        String ownerDomain = requestContext.getOwnerDomain();
+        String repoId = ajaxRequest.getParam("repoId", true);
+
+        ContainerRepo repo = _repoDb.getRepo(ownerDomain, repoId);
+        if(repo == null)
+            throw(new AjaxClientException("The specified Repository was not found",
+                                          AjaxErrors.Codes.RepoNotFound, 400));
+        _permissionCheck.check(ajaxRequest.getOperation(), requestContext, repo);
+
+        return _storageUsageDb.getRepoUsage(ownerDomain, repoId);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+  $Id: $
+  @file ListStorageUsage.java
+  @brief Contains the ListStorageUsage.java class
+*/
+package com.distelli.europa.ajax;
+
+import java.util.List;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.distelli.europa.EuropaRequestContext;
+import com.distelli.europa.db.StorageUsageDb;
+import com.distelli.europa.models.Page;
+import com.distelli.europa.models.StorageUsage;
+import com.distelli.europa.util.PermissionCheck;
+import com.distelli.persistence.PageIterator;
+import com.distelli.webserver.AjaxHelper;
+import com.distelli.webserver.AjaxRequest;
+import com.distelli.webserver.HTTPMethod;
+
+import lombok.extern.log4j.Log4j;
+
+@Log4j
+@Singleton
+public class ListStorageUsage extends AjaxHelper<EuropaRequestContext>
+{
+    @Inject
+    protected StorageUsageDb _storageUsageDb;
+    @Inject
+    protected PermissionCheck _permissionCheck;
+
+    public ListStorageUsage()
+    {
+        this.supportedHttpMethods.add(HTTPMethod.GET);
+    }
+
+    /**
+       Lists the storage usage of the repos of the domain, the first page
+       also has the totals of the domain (repoId is null).
+
+       Params:
+       - pageSize (optional)
+       - marker (optional)
+    */
+    public Object get(AjaxRequest ajaxRequest, EuropaRequestContext requestContext)
+    {
+        _permissionCheck.check(ajaxRequest.getOperation(), requestContext);
+
+        PageIterator iter = new PageIterator()
+            .pageSize(ajaxRequest.getParamAsInt("pageSize", 100))
+            .marker(ajaxRequest.getParam("marker"))
+            .forward();
+
+        List<StorageUsage> list = _storageUsageDb.listUsage(requestContext.getOwnerDomain(), iter);
+        return Page.<StorageUsage>builder()
+            .list(list)
+            .next(iter.getMarker())
+            .build();
+    }
+}
@@ -32,7 +32,11 @@ import lombok.extern.log4j.Log4j;
 import javax.inject.Inject;
 import javax.persistence.RollbackException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -43,9 +47,43 @@ public class ContainerRepoDb extends BaseDb
     private Index<ContainerRepo> _main;
     private Index<ContainerRepo> _secondaryIndex;
     private Index<ContainerRepo> _byCredId;
+    private Index<ContainerRepo> _byLocalName;
 
     private final ObjectMapper _om = new ObjectMapper();
 
+    // Local repo lookups by name are done on nearly every registry request,
+    // so they are cached briefly (including misses). Writes on this node
+    // invalidate immediately, writes on other nodes are observed after the TTL,
+    // except by isPublicRepo():
+    private static final long LOCAL_REPO_CACHE_TTL_MS = 5000;
+    private static final int LOCAL_REPO_CACHE_MAX_ENTRIES = 10000;
+
+    private static class CachedRepo {
+        // null if the repo does not exist:
+        private final ContainerRepo _repo;
+        private final long _expiresAt;
+        private CachedRepo(ContainerRepo repo, long expiresAt) {
+            _repo = repo;
+            _expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, CachedRepo> _localRepoCache =
+        new LinkedHashMap<String, CachedRepo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRepo> eldest) {
+                if ( size() <= LOCAL_REPO_CACHE_MAX_ENTRIES ) return false;
+                unindexLocalRepo(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    // Cache keys of the lookups which found a repo by hash key/id, so a write
+    // to a repo invalidates its lookups without scanning the cache:
+    private final Map<String, Set<String>> _localRepoCacheKeysByRepo = new HashMap<>();
+    // Incremented on every invalidation, so a lookup which raced with a
+    // write does not cache what it read:
+    private long _localRepoCacheGeneration = 0;
+
     private static final Pattern REPO_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_.-]+");
 
     public static TableDescription getTableDescription() {
@@ -75,6 +113,15 @@ public class ContainerRepoDb extends BaseDb
                     .indexType(IndexType.GLOBAL_SECONDARY_INDEX)
                     .readCapacity(1L)
                     .writeCapacity(1L)
+                    .build(),
+                    // Sparse index of local repos by lower case name:
+                    IndexDescription.builder()
+                    .indexName("hk-lname-index")
+                    .hashKey(attr("hk", AttrType.STR))
+                    .rangeKey(attr("lname", AttrType.STR))
+                    .indexType(IndexType.GLOBAL_SECONDARY_INDEX)
+                    .readCapacity(1L)
+                    .writeCapacity(1L)
                     .build()))
             .build();
     }
@@ -89,6 +136,8 @@ public class ContainerRepoDb extends BaseDb
              (item, id) -> item.setId(id.toLowerCase()))
         .put("sidx", String.class,
              (item) -> getSecondaryKey(item.getProvider(), item.getRegion(), item.getName()))
+        .put("lname", String.class,
+             (item) -> getLocalNameKey(item))
         .put("prov", RegistryProvider.class, "provider")
         .put("region", String.class, "region")
         .put("name", String.class, "name")
@@ -128,6 +177,12 @@ public class ContainerRepoDb extends BaseDb
                                   name.toLowerCase());
     }
 
+    private final String getLocalNameKey(ContainerRepo repo)
+    {
+        if ( ! repo.isLocal() || RegistryProvider.EUROPA != repo.getProvider() ) return null;
+        return repo.getName().toLowerCase();
+    }
+
     @Inject
     protected ContainerRepoDb(Index.Factory indexFactory,
                               ConvertMarker.Factory convertMarkerFactory) {
@@ -135,7 +190,7 @@ public class ContainerRepoDb extends BaseDb
         _om.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
         _main = indexFactory.create(ContainerRepo.class)
         .withTableName("repos")
-            .withNoEncrypt("hk", "id", "sidx", "cid", "syc")
+            .withNoEncrypt("hk", "id", "sidx", "cid", "syc", "lname")
         .withHashKeyName("hk")
         .withRangeKeyName("id")
         .withConvertValue(_om::convertValue)
@@ -159,6 +214,15 @@ public class ContainerRepoDb extends BaseDb
         .withConvertValue(_om::convertValue)
         .withConvertMarker(convertMarkerFactory.create("hk", "cid", "id"))
         .build();
+
+        _byLocalName = indexFactory.create(ContainerRepo.class)
+        .withIndexName("repos", "hk-lname-index")
+        .withNoEncrypt("hk", "id", "sidx", "cid", "lname")
+        .withHashKeyName("hk")
+        .withRangeKeyName("lname")
+        .withConvertValue(_om::convertValue)
+        .withConvertMarker(convertMarkerFactory.create("hk", "lname", "id"))
+        .build();
     }
 
     public void save(ContainerRepo repo)
@@ -174,13 +238,22 @@ public class ContainerRepoDb extends BaseDb
             throw(new IllegalArgumentException("Invalid id "+id+" in container repo"));
         if(repo.getDomain() == null)
             throw(new IllegalArgumentException("Invalid null domain for ContainerRepo: "+repo));
-        _main.putItem(repo);
+        try {
+            _main.putItem(repo);
+        } finally {
+            invalidateLocalRepo(repo.getDomain(), repo.getName());
+            invalidateRepo(repo.getDomain(), id);
+        }
     }
 
     public void deleteRepo(String domain, String id)
     {
-        _main.deleteItem(getHashKey(domain),
-                         id.toLowerCase());
+        try {
+            _main.deleteItem(getHashKey(domain),
+                             id.toLowerCase());
+        } finally {
+            invalidateRepo(domain, id);
+        }
     }
 
     public List<ContainerRepo> listRepos(PageIterator pageIterator)
@@ -240,22 +313,133 @@ public class ContainerRepoDb extends BaseDb
     public ContainerRepo getLocalRepo(String domain,
                                       String name)
     {
+        String key = toLocalRepoCacheKey(domain, name);
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized ( _localRepoCache ) {
+            CachedRepo cached = _localRepoCache.get(key);
+            if ( null != cached && now < cached._expiresAt ) {
+                return ( null == cached._repo ) ? null : copy(cached._repo);
+            }
+            generation = _localRepoCacheGeneration;
+        }
+        ContainerRepo repo = findLocalRepo(domain, name);
+        synchronized ( _localRepoCache ) {
+            if ( generation == _localRepoCacheGeneration ) {
+                cacheLocalRepo(key, new CachedRepo(( null == repo ) ? null : copy(repo),
+                                                   now + LOCAL_REPO_CACHE_TTL_MS));
+            }
+        }
+        return repo;
+    }
+
+    private ContainerRepo findLocalRepo(String domain, String name)
+    {
+        List<ContainerRepo> repos = _byLocalName.queryItems(getHashKey(domain), new PageIterator().pageSize(1))
+            .eq(name.toLowerCase())
+            .list();
+        if ( ! repos.isEmpty() ) return repos.get(0);
+
+        // Repos saved before the hk-lname-index existed are only in the
+        // secondary index:
         for(PageIterator iter : new PageIterator().pageSize(1000))
         {
-            List<ContainerRepo> repos = _secondaryIndex.queryItems(getHashKey(domain), iter)
+            repos = _secondaryIndex.queryItems(getHashKey(domain), iter)
             .eq(getSecondaryKey(RegistryProvider.EUROPA, "", name))
             .list();
 
             for(ContainerRepo repo : repos)
             {
-                if(repo.isLocal())
+                if(repo.isLocal()) {
+                    addLocalNameKey(repo);
                     return repo;
+                }
             }
         }
 
         return null;
     }
 
+    // Adds a repo saved before the hk-lname-index existed to the index:
+    private void addLocalNameKey(ContainerRepo repo)
+    {
+        String id = repo.getId().toLowerCase();
+        try {
+            _main.updateItem(getHashKey(repo), id)
+                .set("lname", repo.getName().toLowerCase())
+                .when((expr) -> expr.eq("id", id));
+        } catch ( RollbackException ex ) {
+            // Concurrently deleted.
+        }
+    }
+
+    /**
+     * Forgets the cached result of getLocalRepo(), the next lookup reads
+     * the database.
+     */
+    public void invalidateLocalRepo(String domain, String name)
+    {
+        String key = toLocalRepoCacheKey(domain, name);
+        synchronized ( _localRepoCache ) {
+            _localRepoCacheGeneration++;
+            unindexLocalRepo(key, _localRepoCache.remove(key));
+        }
+    }
+
+    // Forgets the cached lookups which found the repo with this id:
+    private void invalidateRepo(String domain, String id)
+    {
+        synchronized ( _localRepoCache ) {
+            _localRepoCacheGeneration++;
+            Set<String> keys = _localRepoCacheKeysByRepo.remove(toRepoIndexKey(getHashKey(domain), id));
+            if ( null == keys ) return;
+            for ( String key : keys ) {
+                _localRepoCache.remove(key);
+            }
+        }
+    }
+
+    // Callers must hold the _localRepoCache lock:
+    private void cacheLocalRepo(String key, CachedRepo cached)
+    {
+        unindexLocalRepo(key, _localRepoCache.put(key, cached));
+        if ( null == cached._repo ) return;
+        _localRepoCacheKeysByRepo.computeIfAbsent(
+            toRepoIndexKey(getHashKey(cached._repo), cached._repo.getId()),
+            (k) -> new HashSet<>())
+            .add(key);
+    }
+
+    // Callers must hold the _localRepoCache lock:
+    private void unindexLocalRepo(String key, CachedRepo cached)
+    {
+        if ( null == cached || null == cached._repo ) return;
+        String repoKey = toRepoIndexKey(getHashKey(cached._repo), cached._repo.getId());
+        Set<String> keys = _localRepoCacheKeysByRepo.get(repoKey);
+        if ( null == keys ) return;
+        keys.remove(key);
+        if ( keys.isEmpty() ) _localRepoCacheKeysByRepo.remove(repoKey);
+    }
+
+    private String toRepoIndexKey(String hashKey, String id)
+    {
+        return CompositeKey.build(hashKey, id.toLowerCase());
+    }
+
+    private String toLocalRepoCacheKey(String domain, String name)
+    {
+        return CompositeKey.build(getHashKey(domain), name.toLowerCase());
+    }
+
+    private static ContainerRepo copy(ContainerRepo repo)
+    {
+        ContainerRepo copy = repo.toBuilder().build();
+        if ( null != repo.getSyncDestinationContainerRepoIds() ) {
+            copy.setSyncDestinationContainerRepoIds(new HashSet<>(repo.getSyncDestinationContainerRepoIds()));
+        }
+        return copy;
+    }
+
     public boolean repoExists(String domain,
                               RegistryProvider provider,
                               String region,
@@ -270,28 +454,53 @@ public class ContainerRepoDb extends BaseDb
                              id.toLowerCase());
     }
 
+    /**
+     * Decides public access on the current state of a repo found by a
+     * (possibly cached) lookup, so making a repo private or deleting it
+     * takes effect on all nodes immediately. Only public repos are read
+     * again.
+     */
+    public boolean isPublicRepo(ContainerRepo repo)
+    {
+        if ( null == repo || ! repo.isPublicRepo() ) return false;
+        ContainerRepo current = getRepo(repo.getDomain(), repo.getId());
+        return null != current && current.isPublicRepo();
+    }
+
     public void setLastEvent(String domain, String id, RepoEvent lastEvent)
     {
-        _main.updateItem(getHashKey(domain),
-                         id.toLowerCase())
-        .set("levent", lastEvent)
-        .when((expr) -> expr.eq("id", id.toLowerCase()));
+        try {
+            _main.updateItem(getHashKey(domain),
+                             id.toLowerCase())
+            .set("levent", lastEvent)
+            .when((expr) -> expr.eq("id", id.toLowerCase()));
+        } finally {
+            invalidateRepo(domain, id);
+        }
     }
 
     public void setRepoPublic(String domain, String id)
     {
-        _main.updateItem(getHashKey(domain),
-                         id.toLowerCase())
-        .set("pr", true)
-        .when((expr) -> expr.eq("id", id.toLowerCase()));
+        try {
+            _main.updateItem(getHashKey(domain),
+                             id.toLowerCase())
+            .set("pr", true)
+            .when((expr) -> expr.eq("id", id.toLowerCase()));
+        } finally {
+            invalidateRepo(domain, id);
+        }
     }
 
     public void setRepoPrivate(String domain, String id)
     {
-        _main.updateItem(getHashKey(domain),
-                         id.toLowerCase())
-        .set("pr", false)
-        .when((expr) -> expr.eq("id", id.toLowerCase()));
+        try {
+            _main.updateItem(getHashKey(domain),
+                             id.toLowerCase())
+            .set("pr", false)
+            .when((expr) -> expr.eq("id", id.toLowerCase()));
+        } finally {
+            invalidateRepo(domain, id);
+        }
     }
 
     public void setLastSyncTime(String domain, String id, long lastSyncTime)
@@ -310,6 +519,8 @@ public class ContainerRepoDb extends BaseDb
                 .when((expr) -> expr.eq("id", id.toLowerCase()));
         } catch (RollbackException e) {
             throw new ContainerRepoNotFoundException(domain, null, id, e);
+        } finally {
+            invalidateRepo(domain, id);
         }
     }
 
@@ -321,6 +532,8 @@ public class ContainerRepoDb extends BaseDb
                 .when((expr) -> expr.eq("id", id.toLowerCase()));
         } catch (RollbackException e) {
             throw new ContainerRepoNotFoundException(domain, null, id, e);
+        } finally {
+            invalidateRepo(domain, id);
         }
     }
 
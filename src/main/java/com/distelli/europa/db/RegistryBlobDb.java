@@ -14,10 +14,26 @@ import com.distelli.persistence.TableDescription;
 import com.distelli.utils.CompactUUID;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.EntityNotFoundException;
@@ -38,12 +54,51 @@ public class RegistryBlobDb extends BaseDb {
     private static final String ATTR_MANIFEST_IDS = "mids";
     private static final String ATTR_SIZE = "sz";
     private static final String ATTR_MEDIA_TYPE = "ty";
+    private static final String ATTR_REUSE_COUNT = "ru";
+    private static final String ATTR_PART_COUNT = "pc";
+    private static final String ATTR_PARTS_SIZE = "psz";
+    private static final String ATTR_LAST_PART_SIZE = "lps";
+    private static final String ATTR_NEXT_PART_NUM = "npn";
+    private static final String ATTR_PENDING = "pnd";
+    private static final String ATTR_START_TIME = "ts";
+    private static final String ATTR_LAST_PART_TIME = "lpt";
+    private static final String ATTR_UNREFERENCED = "urf";
+    private static final String ATTR_UNREFERENCED_TIME = "uts";
+
+    private static final String PARTS_TABLE_NAME = "rblobpart";
+    private static final String ATTR_PART_NUM = "n";
+    private static final String ATTR_PART_ID = "i";
+    private static final String ATTR_CHUNK_SIZE = "s";
+
+    private static final int MAX_UPLOAD_SESSIONS = 1000;
+    // Part numbers reserved at once for an upload session on this node:
+    private static final int PART_NUMS_PER_RESERVATION = 16;
+    private static final ExecutorService REFERENCE_UPDATES = createReferenceUpdatesExecutor();
 
     private Index<RegistryBlob> _main;
     private Index<RegistryBlob> _byDigest;
+    private Index<RegistryBlob> _byPending;
+    private Index<RegistryBlob> _byUnreferenced;
+    private Index<RegistryBlobPart> _parts;
 
     private final ObjectMapper _om = new ObjectMapper();
 
+    // Node-local copies of in progress uploads, kept current by the writes
+    // done on this node. A copy made stale by a write on another node is
+    // detected by the digest state condition in addParts():
+    private final Map<String, RegistryBlob> _uploadSessions =
+        new LinkedHashMap<String, RegistryBlob>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RegistryBlob> eldest) {
+                if ( size() <= MAX_UPLOAD_SESSIONS ) return false;
+                _reservedPartNums.remove(eldest.getKey());
+                return true;
+            }
+        };
+    // Unused part numbers reserved for the cached upload sessions, blobId ->
+    // {next, last}. Guarded by the _uploadSessions lock:
+    private final Map<String, int[]> _reservedPartNums = new HashMap<>();
+
     private static final TableDescription TABLE_DESCRIPTION = TableDescription.builder()
         .tableName(TABLE_NAME)
         .indexes(
@@ -61,6 +116,42 @@ public class RegistryBlobDb extends BaseDb {
                 .indexType(IndexType.GLOBAL_SECONDARY_INDEX)
                 .readCapacity(1L)
                 .writeCapacity(1L)
+                .build(),
+                // Sparse index of in progress uploads (pnd='#') ordered
+                // by start time, used to find abandoned uploads:
+                IndexDescription.builder()
+                .indexName(ATTR_PENDING+"-index")
+                .hashKey(attr(ATTR_PENDING, AttrType.STR))
+                .rangeKey(attr(ATTR_START_TIME, AttrType.NUM))
+                .indexType(IndexType.GLOBAL_SECONDARY_INDEX)
+                .readCapacity(1L)
+                .writeCapacity(1L)
+                .build(),
+                // Sparse index of finished blobs without references
+                // (urf='#') ordered by when the last reference was
+                // removed, used to garbage collect blobs:
+                IndexDescription.builder()
+                .indexName(ATTR_UNREFERENCED+"-index")
+                .hashKey(attr(ATTR_UNREFERENCED, AttrType.STR))
+                .rangeKey(attr(ATTR_UNREFERENCED_TIME, AttrType.NUM))
+                .indexType(IndexType.GLOBAL_SECONDARY_INDEX)
+                .readCapacity(1L)
+                .writeCapacity(1L)
+                .build()))
+        .build();
+
+    // One record per uploaded part of an in progress upload, so recording
+    // a chunk does not rewrite an ever growing list on the rblob row:
+    private static final TableDescription PARTS_TABLE_DESCRIPTION = TableDescription.builder()
+        .tableName(PARTS_TABLE_NAME)
+        .indexes(
+            Arrays.asList(
+                IndexDescription.builder()
+                .hashKey(attr(ATTR_BLOB_ID, AttrType.STR))
+                .rangeKey(attr(ATTR_PART_NUM, AttrType.NUM))
+                .indexType(IndexType.MAIN_INDEX)
+                .readCapacity(1L)
+                .writeCapacity(1L)
                 .build()))
         .build();
 
@@ -68,6 +159,10 @@ public class RegistryBlobDb extends BaseDb {
         return TABLE_DESCRIPTION;
     }
 
+    public static TableDescription getPartsTableDescription() {
+        return PARTS_TABLE_DESCRIPTION;
+    }
+
     private TransformModule createTransforms(TransformModule module) {
         module.createTransform(RegistryBlob.class)
             .put(ATTR_BLOB_ID, String.class, "blobId")
@@ -77,14 +172,42 @@ public class RegistryBlobDb extends BaseDb {
             .put(ATTR_UPLOAD_ID, String.class, "uploadId")
             .put(ATTR_MD_ENCODED_STATE, byte[].class, "mdEncodedState")
             .put(ATTR_SIZE, Long.class, "size")
-            .put(ATTR_MEDIA_TYPE, String.class, "mediaType");
+            .put(ATTR_MEDIA_TYPE, String.class, "mediaType")
+            .put(ATTR_REUSE_COUNT, Long.class, "reuseCount")
+            .put(ATTR_PART_COUNT, Integer.class, "partCount")
+            .put(ATTR_PARTS_SIZE, Long.class, "partsSize")
+            .put(ATTR_LAST_PART_SIZE, Long.class, "lastPartSize")
+            .put(ATTR_NEXT_PART_NUM, Integer.class, "nextPartNum")
+            .put(ATTR_START_TIME, Long.class, "startTime")
+            .put(ATTR_LAST_PART_TIME, Long.class, "lastPartTime")
+            .put(ATTR_MANIFEST_IDS, new TypeReference<Set<String>>(){}, "manifestIds")
+            .put(ATTR_UNREFERENCED_TIME, Long.class, "unreferencedTime")
+            .put(ATTR_UNREFERENCED, String.class, RegistryBlobDb::toUnreferenced, RegistryBlobDb::fromUnreferenced)
+            .put(ATTR_PENDING, String.class, RegistryBlobDb::toPending, RegistryBlobDb::fromPending);
         module.createTransform(RegistryBlobPart.class)
-            .put("n", Integer.class, "partNum")
-            .put("i", String.class, "partId")
-            .put("s", Long.class, "chunkSize");
+            .put(ATTR_BLOB_ID, String.class, "blobId")
+            .put(ATTR_PART_NUM, Integer.class, "partNum")
+            .put(ATTR_PART_ID, String.class, "partId")
+            .put(ATTR_CHUNK_SIZE, Long.class, "chunkSize");
         return module;
     }
 
+    private static String toPending(RegistryBlob blob) {
+        return ( null == blob.getDigest() ) ? "#" : null;
+    }
+
+    private static void fromPending(RegistryBlob blob, String pending) {
+        // Derived from the digest.
+    }
+
+    private static String toUnreferenced(RegistryBlob blob) {
+        return ( null == blob.getUnreferencedTime() ) ? null : "#";
+    }
+
+    private static void fromUnreferenced(RegistryBlob blob, String unreferenced) {
+        // Derived from the unreferencedTime.
+    }
+
     @Inject
     protected RegistryBlobDb(Index.Factory indexFactory,
                              ConvertMarker.Factory convertMarkerFactory) {
@@ -103,6 +226,20 @@ public class RegistryBlobDb extends BaseDb {
             .withNoEncrypt(noEncrypt)
             .withConvertValue(_om::convertValue)
             .build();
+        _byPending = indexFactory.create(RegistryBlob.class)
+            .withTableDescription(TABLE_DESCRIPTION, ATTR_PENDING+"-index")
+            .withNoEncrypt(noEncrypt)
+            .withConvertValue(_om::convertValue)
+            .build();
+        _byUnreferenced = indexFactory.create(RegistryBlob.class)
+            .withTableDescription(TABLE_DESCRIPTION, ATTR_UNREFERENCED+"-index")
+            .withNoEncrypt(noEncrypt)
+            .withConvertValue(_om::convertValue)
+            .build();
+        _parts = indexFactory.create(RegistryBlobPart.class)
+            .withTableDescription(PARTS_TABLE_DESCRIPTION)
+            .withConvertValue(_om::convertValue)
+            .build();
     }
 
     public RegistryBlob newRegistryBlob(String uploadedBy) {
@@ -111,10 +248,14 @@ public class RegistryBlobDb extends BaseDb {
         }
         RegistryBlob blob = RegistryBlob.builder()
             .blobId(CompactUUID.randomUUID().toString())
-            .partIds(Collections.emptyList())
+            .partCount(0)
+            .partsSize(0L)
+            .nextPartNum(0)
+            .startTime(System.currentTimeMillis())
             .uploadedBy(uploadedBy)
             .build();
         _main.putItem(blob);
+        cacheUploadSession(blob);
         return blob;
     }
 
@@ -125,13 +266,142 @@ public class RegistryBlobDb extends BaseDb {
         return results.get(0);
     }
 
+    // Lists uploads which have not finished, oldest first.
+    public List<RegistryBlob> listPendingUploads(PageIterator iterator) {
+        return _byPending.queryItems("#", iterator).list();
+    }
+
+    // Lists finished blobs without references, longest unreferenced first.
+    public List<RegistryBlob> listUnreferencedBlobs(PageIterator iterator) {
+        return _byUnreferenced.queryItems("#", iterator).list();
+    }
+
+    // Lists all blobs, used to find blobs which were never marked as unreferenced.
+    public List<RegistryBlob> listBlobs(PageIterator iterator) {
+        return _main.scanItems(iterator);
+    }
+
+    /**
+     * Adds an upload started before the pending index existed to the
+     * index, as if it was started now.
+     *
+     * @return true if the upload was added by this call.
+     */
+    public boolean markPending(String blobId) {
+        try {
+            _main.updateItem(blobId, null)
+                .set(ATTR_PENDING, "#")
+                .set(ATTR_START_TIME, System.currentTimeMillis())
+                .when((expr) -> expr.and(
+                          expr.exists(ATTR_BLOB_ID),
+                          expr.and(
+                              expr.not(expr.exists(ATTR_DIGEST)),
+                              expr.not(expr.exists(ATTR_START_TIME)))));
+            return true;
+        } catch ( RollbackException ex ) {
+            // Finished, already in the index or deleted.
+            return false;
+        }
+    }
+
     public RegistryBlob getRegistryBlobById(String blobId) {
-        return _main.getItem(blobId);
+        RegistryBlob blob = _main.getItem(blobId);
+        if ( null != blob && null == blob.getPartCount() && null != blob.getUploadId() ) {
+            // Upload started before the part log existed, derive the
+            // running totals from the legacy parts list:
+            List<RegistryBlobPart> parts = blob.getPartIds();
+            int count = ( null == parts ) ? 0 : parts.size();
+            blob.setPartCount(count);
+            blob.setPartsSize(( null == parts ) ? 0L : parts.stream().mapToLong((part) -> part.getChunkSize()).sum());
+            blob.setLastPartSize(( count > 0 ) ? parts.get(count-1).getChunkSize() : null);
+        }
+        return blob;
+    }
+
+    /**
+     * Same as getRegistryBlobById(), but an in progress upload may be served
+     * from the node-local upload session cache.
+     */
+    public RegistryBlob getUploadSession(String blobId) {
+        synchronized ( _uploadSessions ) {
+            RegistryBlob blob = _uploadSessions.get(blobId);
+            if ( null != blob ) return blob.toBuilder().build();
+        }
+        RegistryBlob blob = getRegistryBlobById(blobId);
+        if ( null != blob && null != blob.getUploadId() ) {
+            cacheUploadSession(blob);
+        }
+        return blob;
+    }
+
+    public void invalidateUploadSession(String blobId) {
+        synchronized ( _uploadSessions ) {
+            _uploadSessions.remove(blobId);
+            _reservedPartNums.remove(blobId);
+        }
+    }
+
+    private void cacheUploadSession(RegistryBlob blob) {
+        synchronized ( _uploadSessions ) {
+            _uploadSessions.put(blob.getBlobId(), blob.toBuilder().build());
+        }
+    }
+
+    /**
+     * @return all the parts of an in progress upload ordered by part number,
+     *     including any recorded in the legacy parts list.
+     */
+    public List<RegistryBlobPart> getParts(RegistryBlob blob) {
+        Map<Integer, RegistryBlobPart> parts = new TreeMap<>();
+        if ( null != blob.getPartIds() ) {
+            for ( RegistryBlobPart part : blob.getPartIds() ) {
+                parts.put(part.getPartNum(), part);
+            }
+        }
+        for ( PageIterator it : new PageIterator() ) {
+            for ( RegistryBlobPart part : _parts.queryItems(blob.getBlobId(), it).list() ) {
+                parts.put(part.getPartNum(), part);
+            }
+        }
+        return new ArrayList<>(parts.values());
     }
 
     // Simply forgets about a blob (from the DB perspective), might still be in S3.
     public void forgetBlob(String blobId) {
+        invalidateUploadSession(blobId);
         _main.deleteItem(blobId, null);
+        deleteParts(blobId);
+    }
+
+    /**
+     * Forgets an upload, as listed by listPendingUploads(), if it did not
+     * finish and no part was recorded since it was listed. The caller is
+     * responsible for aborting the upload in the object store if this
+     * returns true.
+     */
+    public boolean forgetAbandonedUpload(RegistryBlob blob) {
+        String blobId = blob.getBlobId();
+        Long lastPartTime = blob.getLastPartTime();
+        invalidateUploadSession(blobId);
+        try {
+            _main.deleteItem(blobId, null, (expr) -> expr.and(
+                                 expr.not(expr.exists(ATTR_DIGEST)),
+                                 ( null == lastPartTime )
+                                 ? expr.not(expr.exists(ATTR_LAST_PART_TIME))
+                                 : expr.eq(ATTR_LAST_PART_TIME, lastPartTime)));
+        } catch ( RollbackException ex ) {
+            return false;
+        }
+        deleteParts(blobId);
+        return true;
+    }
+
+    private void deleteParts(String blobId) {
+        for ( PageIterator it : new PageIterator() ) {
+            for ( RegistryBlobPart part : _parts.queryItems(blobId, it).list() ) {
+                _parts.deleteItem(blobId, part.getPartNum());
+            }
+        }
     }
 
     public void setUploadId(String blobId, String uploadId) {
@@ -139,38 +409,194 @@ public class RegistryBlobDb extends BaseDb {
             _main.updateItem(blobId, null)
                 .set(ATTR_UPLOAD_ID, AttrType.STR, uploadId)
                 .when((expr) -> expr.exists(ATTR_BLOB_ID));
+            synchronized ( _uploadSessions ) {
+                RegistryBlob blob = _uploadSessions.get(blobId);
+                if ( null != blob ) blob.setUploadId(uploadId);
+            }
         } catch ( RollbackException ex ) {
+            invalidateUploadSession(blobId);
             throw new EntityNotFoundException("blobId="+blobId+" does not exist");
         }
     }
 
-    public void addPart(String blobId, int partIndex, RegistryBlobPart partId, byte[] oldMDState, byte[] newMDState)
+    /**
+     * Reserves count part numbers for parts uploaded after the parts
+     * recorded in blob. A part number is never handed out twice, so an
+     * upload which races with another upload of the same blob can not
+     * replace the parts of the other in the object store. Fails if blob is
+     * not the current state of the upload, so no part is uploaded based on
+     * a stale upload session.
+     *
+     * @return the first reserved part number.
+     */
+    public int reservePartNums(RegistryBlob blob, int count)
         throws EntityNotFoundException, ConcurrentModificationException
     {
+        String blobId = blob.getBlobId();
+        byte[] oldMDState = blob.getMdEncodedState();
+        int partCount = ( null == blob.getPartCount() ) ? 0 : blob.getPartCount();
+        if ( null == blob.getNextPartNum() ) {
+            // Upload started before part numbers were reserved, continue
+            // after the parts already recorded:
+            try {
+                _main.updateItem(blobId, null)
+                    .set(ATTR_NEXT_PART_NUM, partCount)
+                    .when((expr) -> expr.and(
+                              expr.exists(ATTR_BLOB_ID),
+                              expr.not(expr.exists(ATTR_NEXT_PART_NUM))));
+            } catch ( RollbackException ex ) {
+                // Already set, or deleted which is detected below.
+            }
+        }
+        RegistryBlob updated;
+        try {
+            updated = _main.updateItem(blobId, null)
+                .increment(ATTR_NEXT_PART_NUM, count)
+                .returnAllNew()
+                .when((expr) -> expr.and(
+                          expr.exists(ATTR_BLOB_ID),
+                          expr.and(
+                              ( null == oldMDState )
+                              ? expr.not(expr.exists(ATTR_MD_ENCODED_STATE))
+                              : expr.eq(ATTR_MD_ENCODED_STATE, oldMDState),
+                              // Legacy uploads have no part count:
+                              expr.or(
+                                  expr.eq(ATTR_PART_COUNT, partCount),
+                                  expr.not(expr.exists(ATTR_PART_COUNT))))));
+        } catch ( RollbackException ex ) {
+            throw staleUpload(blob);
+        }
+        blob.setNextPartNum(updated.getNextPartNum());
+        synchronized ( _uploadSessions ) {
+            RegistryBlob cached = _uploadSessions.get(blobId);
+            if ( null != cached ) cached.setNextPartNum(updated.getNextPartNum());
+        }
+        return updated.getNextPartNum() - count + 1;
+    }
+
+    /**
+     * Same as reservePartNums(), but the part numbers are taken from a
+     * block reserved for the upload session on this node, so most chunks
+     * of an upload handled by a single node need no write to reserve a
+     * part number. A stale session is then detected by addParts() instead.
+     *
+     * @return the first of count consecutive part numbers.
+     */
+    public int takePartNums(RegistryBlob blob, int count)
+        throws EntityNotFoundException, ConcurrentModificationException
+    {
+        String blobId = blob.getBlobId();
+        synchronized ( _uploadSessions ) {
+            int[] reserved = _reservedPartNums.get(blobId);
+            if ( null != reserved && reserved[1] - reserved[0] + 1 >= count ) {
+                int first = reserved[0];
+                reserved[0] += count;
+                return first;
+            }
+        }
+        int reserve = Math.max(count, PART_NUMS_PER_RESERVATION);
+        int first = reservePartNums(blob, reserve);
+        synchronized ( _uploadSessions ) {
+            if ( _uploadSessions.containsKey(blobId) ) {
+                _reservedPartNums.put(blobId, new int[]{first + count, first + reserve - 1});
+            }
+        }
+        return first;
+    }
+
+    public void addPart(RegistryBlob blob, RegistryBlobPart part, byte[] newMDState)
+        throws EntityNotFoundException, ConcurrentModificationException
+    {
+        addParts(blob, Collections.singletonList(part), newMDState);
+    }
+
+    /**
+     * Records consecutive parts uploaded after the parts already recorded
+     * in blob, along with the digest state after the last part. The parts
+     * must use part numbers from reservePartNums().
+     *
+     * The running totals on the rblob row are updated first, conditionally
+     * on the digest state and part count in blob, and only then are the
+     * part records written. A writer which loses the condition records no
+     * parts, so the part log always matches the digest state. The cost
+     * does not grow with the number of parts already uploaded.
+     */
+    public void addParts(RegistryBlob blob, List<RegistryBlobPart> parts, byte[] newMDState)
+        throws EntityNotFoundException, ConcurrentModificationException
+    {
+        String blobId = blob.getBlobId();
+        byte[] oldMDState = blob.getMdEncodedState();
+        long partsSize = ( null == blob.getPartsSize() ) ? 0 : blob.getPartsSize();
+        int oldPartCount = ( null == blob.getPartCount() ) ? 0 : blob.getPartCount();
+        for ( RegistryBlobPart part : parts ) {
+            part.setBlobId(blobId);
+            partsSize += part.getChunkSize();
+        }
+        int partCount = oldPartCount + parts.size();
+        long lastPartSize = parts.get(parts.size()-1).getChunkSize();
         try {
             _main.updateItem(blobId, null)
-                .listSet(ATTR_PART_IDS, partIndex, AttrType.MAP, partId)
+                .set(ATTR_PART_COUNT, partCount)
+                .set(ATTR_PARTS_SIZE, partsSize)
+                .set(ATTR_LAST_PART_SIZE, lastPartSize)
+                .set(ATTR_LAST_PART_TIME, System.currentTimeMillis())
                 .set(ATTR_MD_ENCODED_STATE, AttrType.BIN, newMDState)
                 .when((expr) -> expr.and(
                           expr.exists(ATTR_BLOB_ID),
-                          ( null == oldMDState )
-                          ? expr.not(expr.exists(ATTR_MD_ENCODED_STATE))
-                          : expr.eq(ATTR_MD_ENCODED_STATE, oldMDState)));
+                          expr.and(
+                              ( null == oldMDState )
+                              ? expr.not(expr.exists(ATTR_MD_ENCODED_STATE))
+                              : expr.eq(ATTR_MD_ENCODED_STATE, oldMDState),
+                              // Legacy uploads have no part count:
+                              expr.or(
+                                  expr.eq(ATTR_PART_COUNT, oldPartCount),
+                                  expr.not(expr.exists(ATTR_PART_COUNT))))));
         } catch ( RollbackException ex ) {
-            // Doesn't exist, then throw EntityNotFoundException?
-            RegistryBlob blob = _main.getItemOrThrow(blobId, null);
-            throw new ConcurrentModificationException(
-                "Expected mdState="+(null==oldMDState?"null":printHexBinary(oldMDState))+", but got="+
-                (null == blob.getMdEncodedState()?"null":printHexBinary(blob.getMdEncodedState())));
+            throw staleUpload(blob);
+        }
+        for ( RegistryBlobPart part : parts ) {
+            _parts.putItem(part);
         }
+        cacheUploadSession(blob.toBuilder()
+                           .partCount(partCount)
+                           .partsSize(partsSize)
+                           .lastPartSize(lastPartSize)
+                           .mdEncodedState(newMDState)
+                           .build());
+    }
+
+    // Forgets the session and describes why blob is stale.
+    private ConcurrentModificationException staleUpload(RegistryBlob blob)
+        throws EntityNotFoundException
+    {
+        String blobId = blob.getBlobId();
+        byte[] oldMDState = blob.getMdEncodedState();
+        invalidateUploadSession(blobId);
+        // Doesn't exist, then throw EntityNotFoundException?
+        RegistryBlob current = _main.getItemOrThrow(blobId, null);
+        return new ConcurrentModificationException(
+            "Expected mdState="+(null==oldMDState?"null":printHexBinary(oldMDState))+
+            " partCount="+blob.getPartCount()+", but got="+
+            (null == current.getMdEncodedState()?"null":printHexBinary(current.getMdEncodedState()))+
+            " partCount="+current.getPartCount());
     }
 
     public void finishUpload(String blobId, byte[] currentMDState, String digest, long size, String mediaType) {
+        invalidateUploadSession(blobId);
         try {
+            // Nothing references the blob until a manifest referencing it is pushed:
             UpdateItemBuilder<RegistryBlob> builder = _main.updateItem(blobId, null)
                 .remove(ATTR_PART_IDS)
                 .remove(ATTR_MD_ENCODED_STATE)
                 .remove(ATTR_UPLOAD_ID)
+                .remove(ATTR_PART_COUNT)
+                .remove(ATTR_PARTS_SIZE)
+                .remove(ATTR_LAST_PART_SIZE)
+                .remove(ATTR_NEXT_PART_NUM)
+                .remove(ATTR_LAST_PART_TIME)
+                .remove(ATTR_PENDING)
+                .set(ATTR_UNREFERENCED, "#")
+                .set(ATTR_UNREFERENCED_TIME, System.currentTimeMillis())
                 .set(ATTR_DIGEST, digest.toLowerCase())
                 .set(ATTR_SIZE, size);
             if ( null != mediaType ) {
@@ -181,10 +607,147 @@ public class RegistryBlobDb extends BaseDb {
             throw new ConcurrentModificationException(
                 "attempt to finish upload of "+blobId+", but the digest state did not match");
         }
+        deleteParts(blobId);
+    }
+
+    /**
+     * Records that an upload of the same content was deduplicated into
+     * blobId, and restarts its grace period, so the manifest referencing
+     * the reused blob can be pushed before it is collected. The
+     * unreferenced time is only read while the blob is marked
+     * unreferenced, so it is set either way, in the same write.
+     *
+     * @return false if the blob was deleted (by the CollectBlobsTask), so
+     *     the upload can not be deduplicated into it.
+     */
+    public boolean recordReuse(String blobId) {
+        try {
+            _main.updateItem(blobId, null)
+                .increment(ATTR_REUSE_COUNT, 1)
+                .set(ATTR_UNREFERENCED_TIME, System.currentTimeMillis())
+                .when((expr) -> expr.and(
+                          expr.exists(ATTR_BLOB_ID),
+                          expr.exists(ATTR_DIGEST)));
+            return true;
+        } catch ( RollbackException ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * Marks a finished blob without references as unreferenced, so it is
+     * found by listUnreferencedBlobs().
+     *
+     * @return true if the blob was marked by this call.
+     */
+    public boolean markUnreferenced(String blobId) {
+        try {
+            _main.updateItem(blobId, null)
+                .set(ATTR_UNREFERENCED, "#")
+                .set(ATTR_UNREFERENCED_TIME, System.currentTimeMillis())
+                .when((expr) -> expr.and(
+                          expr.exists(ATTR_DIGEST),
+                          expr.and(
+                              expr.not(expr.exists(ATTR_MANIFEST_IDS)),
+                              expr.not(expr.exists(ATTR_UNREFERENCED)))));
+            return true;
+        } catch ( RollbackException ex ) {
+            // Referenced, already marked, in progress or deleted.
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the record of a blob if it is still unreferenced. The caller
+     * is responsible for deleting the blob from the object store if this
+     * returns true.
+     *
+     * @param unreferencedTime the blob must have been unreferenced since
+     *     this time (it was not referenced and then unreferenced again in
+     *     the meantime).
+     *
+     * @return true if the record was deleted.
+     */
+    public boolean deleteUnreferencedBlob(String blobId, long unreferencedTime) {
+        try {
+            _main.deleteItem(blobId, null, (expr) -> expr.and(
+                                 expr.not(expr.exists(ATTR_MANIFEST_IDS)),
+                                 expr.eq(ATTR_UNREFERENCED_TIME, unreferencedTime)));
+            return true;
+        } catch ( RollbackException ex ) {
+            return false;
+        }
+    }
+
+    private static ExecutorService createReferenceUpdatesExecutor() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            16, 16, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            (runnable) -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setName(String.format("BlobReferences-%d", threadCounter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Same as addReference(), but the digests are updated concurrently.
+     *
+     * @return digest -> blob (after the update) of the digests which exist.
+     */
+    public Map<String, RegistryBlob> addReferences(Collection<String> digests, String manifestId) {
+        return forEachDigest(digests, (digest) -> addReferenceToBlob(digest, manifestId));
+    }
+
+    /**
+     * Same as removeReference(), but the digests are updated concurrently.
+     *
+     * @return digest -> blob (after the update) of the digests which exist.
+     */
+    public Map<String, RegistryBlob> removeReferences(Collection<String> digests, String manifestId) {
+        return forEachDigest(digests, (digest) -> removeReference(digest, manifestId));
+    }
+
+    // Applies fn to each digest on the REFERENCE_UPDATES pool, returns the non-null results:
+    private <T> Map<String, T> forEachDigest(Collection<String> digests, Function<String, T> fn) {
+        if ( null == digests ) return Collections.emptyMap();
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for ( String digest : digests ) {
+            futures.put(digest, REFERENCE_UPDATES.submit(() -> fn.apply(digest)));
+        }
+        Map<String, T> results = new HashMap<>();
+        RuntimeException failure = null;
+        // Wait for all updates, even if one failed, so the caller can clean up:
+        for ( Map.Entry<String, Future<T>> entry : futures.entrySet() ) {
+            try {
+                T result = entry.getValue().get();
+                if ( null != result ) results.put(entry.getKey(), result);
+            } catch ( ExecutionException ex ) {
+                if ( null == failure ) {
+                    failure = ( ex.getCause() instanceof RuntimeException )
+                        ? (RuntimeException)ex.getCause()
+                        : new RuntimeException(ex.getCause());
+                }
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+        if ( null != failure ) throw failure;
+        return results;
     }
 
     // Returns the size of the digest, or null.
     public Long addReference(String digest, String manifestId) {
+        RegistryBlob blob = addReferenceToBlob(digest, manifestId);
+        return ( null == blob ) ? null : blob.getSize();
+    }
+
+    // Returns the blob after adding the reference, or null if the digest is unknown.
+    private RegistryBlob addReferenceToBlob(String digest, String manifestId) {
         digest = digest.toLowerCase();
         for ( int retry=0;;retry++ ) {
             RegistryBlob blob = getRegistryBlobByDigest(digest);
@@ -192,9 +755,10 @@ public class RegistryBlobDb extends BaseDb {
             try {
                 return _main.updateItem(blob.getBlobId(), null)
                     .setAdd(ATTR_MANIFEST_IDS, AttrType.STR, manifestId)
+                    .remove(ATTR_UNREFERENCED)
+                    .remove(ATTR_UNREFERENCED_TIME)
                     .returnAllNew()
-                    .when((expr) -> expr.exists(ATTR_BLOB_ID))
-                    .getSize();
+                    .when((expr) -> expr.exists(ATTR_BLOB_ID));
             } catch ( RollbackException ex ) {
                 log.info(ex.getMessage(), ex);
                 // Give up!
@@ -204,18 +768,29 @@ public class RegistryBlobDb extends BaseDb {
         }
     }
 
-    public void removeReference(String digest, String manifestId) {
+    // Returns the blob after removing the reference, or null if the digest is unknown.
+    public RegistryBlob removeReference(String digest, String manifestId) {
         digest = digest.toLowerCase();
+        RegistryBlob result = null;
         for ( PageIterator it : new PageIterator() ) {
             for ( RegistryBlob blob : _byDigest.queryItems(digest, it).list() ) {
+                RegistryBlob updated;
                 try {
-                    _main.updateItem(blob.getBlobId(), null)
+                    updated = _main.updateItem(blob.getBlobId(), null)
                         .setRemove(ATTR_MANIFEST_IDS, AttrType.STR, manifestId)
+                        .returnAllNew()
                         .when((expr) -> expr.exists(ATTR_BLOB_ID));
                 } catch ( RollbackException ex ) {
                     // ignored, just don't want to create a "blank" record.
+                    continue;
+                }
+                // Removing the last element of a set removes the attribute:
+                if ( null == updated.getManifestIds() || updated.getManifestIds().isEmpty() ) {
+                    markUnreferenced(blob.getBlobId());
                 }
+                if ( null == result ) result = updated;
             }
         }
+        return result;
     }
 }
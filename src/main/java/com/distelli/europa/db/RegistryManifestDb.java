@@ -1,18 +1,12 @@
 package com.distelli.europa.db;
 
-import com.distelli.europa.models.ContainerRepo;
-import com.distelli.europa.models.DockerImage;
 import com.distelli.europa.models.Monitor;
 import com.distelli.europa.models.MultiTaggedManifest;
-import com.distelli.europa.models.Notification;
-import com.distelli.europa.models.NotificationId;
-import com.distelli.europa.models.Pipeline;
+import com.distelli.europa.models.RegistryBlob;
 import com.distelli.europa.models.RegistryManifest;
-import com.distelli.europa.models.RepoEvent;
 import com.distelli.europa.models.RepoEventType;
 import com.distelli.europa.models.UnknownDigests;
-import com.distelli.europa.notifiers.Notifier;
-import com.distelli.europa.tasks.PipelineTask;
+import com.distelli.europa.tasks.RepoEventTask;
 import com.distelli.europa.util.Tag;
 import com.distelli.jackson.transform.TransformModule;
 import com.distelli.persistence.AttrType;
@@ -23,6 +17,8 @@ import com.distelli.persistence.IndexDescription;
 import com.distelli.persistence.IndexType;
 import com.distelli.persistence.PageIterator;
 import com.distelli.persistence.TableDescription;
+import com.distelli.persistence.UpdateItemBuilder;
+import com.distelli.utils.CompactUUID;
 import com.distelli.utils.CompositeKey;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -33,8 +29,10 @@ import javax.inject.Singleton;
 import javax.persistence.RollbackException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,22 +47,39 @@ public class RegistryManifestDb extends BaseDb {
 
     private final ObjectMapper _om = new ObjectMapper();
 
+    // Tag resolutions are cached briefly, writes on this node invalidate
+    // immediately, writes on other nodes are observed after the TTL:
+    private static final long TAG_CACHE_TTL_MS = 5000;
+    private static final int TAG_CACHE_MAX_ENTRIES = 10000;
+
+    private static class CachedManifest {
+        private final RegistryManifest _manifest;
+        private final long _expiresAt;
+        private CachedManifest(RegistryManifest manifest, long expiresAt) {
+            _manifest = manifest;
+            _expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, CachedManifest> _tagCache =
+        new LinkedHashMap<String, CachedManifest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedManifest> eldest) {
+                return size() > TAG_CACHE_MAX_ENTRIES;
+            }
+        };
+    // Incremented on every invalidation, so a lookup which raced with a
+    // write does not cache what it read:
+    private long _tagCacheGeneration = 0;
+
     @Inject
     private RegistryBlobDb _blobDb;
     @Inject
     private TasksDb _tasksDb;
     @Inject
-    private Monitor _monitor;
-    @Inject
-    private RepoEventsDb _eventsDb;
+    private StorageUsageDb _storageUsageDb;
     @Inject
-    private PipelineDb _pipelineDb;
-    @Inject
-    private ContainerRepoDb _repoDb;
-    @Inject
-    protected NotificationsDb _notificationDb = null;
-    @Inject
-    protected Notifier _notifier = null;
+    private Monitor _monitor;
 
     public static TableDescription getTableDescription() {
         return TableDescription.builder()
@@ -101,7 +116,9 @@ public class RegistryManifestDb extends BaseDb {
             .put("by", String.class, "uploadedBy")
             .put("ty", String.class, "contentType")
             .put("vsz", Long.class, "virtualSize")
-            .put("ts", Long.class, "pushTime");
+            .put("ts", Long.class, "pushTime")
+            .put("msz", Long.class, "manifestSize")
+            .put("cnt", Boolean.class, "storageCounted");
         return module;
     }
 
@@ -111,6 +128,25 @@ public class RegistryManifestDb extends BaseDb {
         return CompositeKey.build(repoId, tag);
     }
 
+    // Blobs are shared by all repos, so blob references are recorded per
+    // manifest per repo as domain/repoId/manifestId (domains and repoIds
+    // never contain '/'), and are held by the manifestId-as-tag entry:
+    private static String toReferenceId(String domain, String repoId, String manifestId) {
+        return toReferenceOwner(domain, repoId) + "/" + manifestId;
+    }
+
+    static String toReferenceOwner(String domain, String repoId) {
+        return domain + "/" + repoId;
+    }
+
+    // Returns domain/repoId of a blob reference, or null for references in a legacy format.
+    static String getReferenceOwner(String referenceId) {
+        int slash = referenceId.lastIndexOf('/');
+        if ( slash <= 0 || referenceId.indexOf('/') == slash ) return null;
+        if ( ! Tag.isDigest(referenceId.substring(slash+1)) ) return null;
+        return referenceId.substring(0, slash);
+    }
+
     private String toRepoManifestIdRK(String repoId, String manifestId)
     {
         if(manifestId == null || manifestId.trim().isEmpty())
@@ -185,116 +221,199 @@ public class RegistryManifestDb extends BaseDb {
                 "Illegal manifestId="+manifestId+" expected to match sha256:[0-9a-f]{64}");
         }
 
+        RegistryManifest current = putIfSameManifest(manifest);
+        if ( null != current ) return current;
+        String referenceId = toReferenceId(manifest.getDomain(), manifest.getContainerRepoId(), manifestId);
+
         // Validate digests (and add references):
         Set<String> digests = manifest.getDigests();
         if ( null == digests ) digests = Collections.emptySet();
         Set<String> unknownDigests = new HashSet<>();
+        Map<String, RegistryBlob> blobs = Collections.emptyMap();
         if ( ! digests.isEmpty() ) {
             long totalSize = 0;
+            blobs = _blobDb.addReferences(digests, referenceId);
             for ( String digest : digests ) {
-                Long size = _blobDb.addReference(digest, manifestId);
-                if ( null == size ) {
+                RegistryBlob blob = blobs.get(digest);
+                if ( null == blob ) {
                     unknownDigests.add(digest);
-                } else {
-                    totalSize += size;
+                } else if ( null != blob.getSize() ) {
+                    totalSize += blob.getSize();
                 }
             }
             manifest.setVirtualSize(totalSize);
+            if ( ! unknownDigests.isEmpty() ) {
+                removeUnheldReferences(manifest, blobs.keySet(), referenceId);
+            }
         }
         if ( ! unknownDigests.isEmpty() ) {
-            for ( String digest : digests ) {
-                if ( ! unknownDigests.contains(digest) ) {
-                    _blobDb.removeReference(digest, manifestId);
-                }
-            }
             throw new UnknownDigests(
                 "DigestsUnknown "+unknownDigests+" referenced by "+manifest,
                 unknownDigests);
         }
 
         boolean success = false;
+        // True if the manifestId-as-tag entry was created, which adds the
+        // manifest to the repo:
+        boolean added = false;
         RegistryManifest old = null;
         try {
             // There should always be an entry for the manifestId-as-tag.
             if ((! Tag.isDigest(manifest.getTag()))
-                && null == getManifestByRepoIdTag(manifest.getDomain(),
-                                                  manifest.getContainerRepoId(),
-                                                  manifestId)) {
+                && null == _main.getItem(manifest.getDomain(),
+                                         toRK(manifest.getContainerRepoId(), manifestId))) {
                 RegistryManifest copy = manifest.toBuilder()
                     .tag(manifestId)
+                    .storageCounted(true)
                     .build();
-                _main.putItem(copy);
+                added = null == _main.putItem(copy);
+                invalidateTag(copy.getDomain(), copy.getContainerRepoId(), copy.getTag());
             }
+            if ( Tag.isDigest(manifest.getTag()) ) manifest.setStorageCounted(true);
             old = _main.putItem(manifest);
+            invalidateTag(manifest.getDomain(), manifest.getContainerRepoId(), manifest.getTag());
+            // Overwriting an entry written before storage accounting also adds it:
+            if ( Tag.isDigest(manifest.getTag()) ) {
+                added = null == old || ! Boolean.TRUE.equals(old.getStorageCounted());
+            }
 
             if ( ! Tag.isDigest(manifest.getTag()) ) {
-                RepoEvent event = RepoEvent.builder()
-                    .domain(manifest.getDomain())
-                    .repoId(manifest.getContainerRepoId())
-                    .eventType(RepoEventType.PUSH)
-                    .eventTime(System.currentTimeMillis())
-                    .imageTags(Collections.singletonList(manifest.getTag()))
-                    .imageSha(manifest.getManifestId())
-                    .build();
-                _eventsDb.save(event);
-                _repoDb.setLastEvent(event.getDomain(), event.getRepoId(), event);
-
-                DockerImage image = DockerImage
-                    .builder()
-                    .imageTags(event.getImageTags())
-                    .pushTime(manifest.getPushTime())
-                    .imageSha(manifest.getManifestId())
-                    .build();
-
-                notify(manifest, image, event);
-
-                if(log.isDebugEnabled())
-                    log.debug(
-                        "Finding pipelines to execute for domain="+manifest.getDomain()+
-                        " repoId="+manifest.getContainerRepoId());
-                for ( PageIterator it : new PageIterator() ) {
-                    for ( Pipeline pipeline : _pipelineDb.listByContainerRepoId(
-                              manifest.getDomain(),
-                              manifest.getContainerRepoId(),
-                              it) )
-                    {
-                        if(log.isDebugEnabled())
-                            log.debug("Adding Pipeline task for id: "+pipeline.getId());
-                        _tasksDb.addTask(_monitor,
-                                         PipelineTask.builder()
-                                         .domain(manifest.getDomain())
-                                         .tag(manifest.getTag())
-                                         .containerRepoId(manifest.getContainerRepoId())
-                                         .manifestId(manifest.getManifestId())
-                                         .pipelineId(pipeline.getId())
-                                         .build());
-                    }
-                }
-            }
-            if ( null != old && null != old.getDigests() && null != old.getManifestId() ) {
-                // clean-up references:
-                for ( String digest : old.getDigests() ) {
-                    _blobDb.removeReference(digest, old.getManifestId());
-                }
+                addRepoEventTask(RepoEventType.PUSH, manifest);
             }
+            // The references of the old manifest are held by its
+            // manifestId-as-tag entry, see deleteManifest().
             success = true;
         } finally {
             if ( ! success ) {
-                for ( String digest : digests ) {
-                    _blobDb.removeReference(digest, manifestId);
-                }
+                removeUnheldReferences(manifest, digests, referenceId);
             }
         }
+        if ( added ) {
+            accountStorage(manifest.getDomain(), manifest.getContainerRepoId(), blobs, true);
+        }
         return old;
     }
 
+    private void accountStorage(String domain, String repoId, Map<String, RegistryBlob> blobs, boolean added) {
+        try {
+            if ( added ) {
+                _storageUsageDb.manifestAdded(domain, repoId, blobs.values());
+            } else {
+                _storageUsageDb.manifestRemoved(domain, repoId, blobs.values());
+            }
+        } catch ( RuntimeException ex ) {
+            // The manifest change is already done, so the counters drift:
+            log.error("Unable to update storage usage of domain="+domain+" repoId="+repoId+": "+ex.getMessage(), ex);
+        }
+    }
+
+    // Removes the references added by a failed put(), unless they are held
+    // by an existing manifestId-as-tag entry:
+    private void removeUnheldReferences(RegistryManifest manifest, Collection<String> digests, String referenceId) {
+        if ( null != _main.getItem(manifest.getDomain(),
+                                   toRK(manifest.getContainerRepoId(), manifest.getManifestId())) ) {
+            return;
+        }
+        _blobDb.removeReferences(digests, referenceId);
+    }
+
+    /**
+     * Re-pushing the manifest a tag already references only needs to
+     * record the new push, the references, the manifestId-as-tag entry and
+     * the tag itself already exist and no event is emitted.
+     *
+     * @return the current manifest if the tag already references the same
+     *     manifest, otherwise null.
+     */
+    private RegistryManifest putIfSameManifest(RegistryManifest manifest) {
+        String domain = manifest.getDomain();
+        String repoId = manifest.getContainerRepoId();
+        String tag = manifest.getTag();
+        String manifestId = manifest.getManifestId();
+        RegistryManifest current = getManifestByRepoIdTag(domain, repoId, tag);
+        if ( null == current || ! manifestId.equals(current.getManifestId()) ) return null;
+        try {
+            UpdateItemBuilder<RegistryManifest> builder = _main.updateItem(domain, toRK(repoId, tag))
+                .set("by", manifest.getUploadedBy());
+            if ( null != manifest.getPushTime() ) {
+                builder.set("ts", manifest.getPushTime());
+            }
+            builder.when((expr) -> expr.eq("id", manifestId));
+        } catch ( RollbackException ex ) {
+            // Tag was concurrently changed (or the cached tag was stale):
+            return null;
+        } finally {
+            invalidateTag(domain, repoId, tag);
+        }
+        return current;
+    }
+
+    /**
+     * Removes a tag. Removing the manifestId-as-tag entry deletes the
+     * manifest, see deleteManifest().
+     */
     public void remove(String domain, String repoId, String tag) {
         if ( null == domain ) domain = "d0";
+        if ( Tag.isDigest(tag) ) {
+            deleteManifest(domain, repoId, tag);
+        } else {
+            removeTag(domain, repoId, tag);
+        }
+    }
+
+    /**
+     * Deletes a manifest from a repo: the tags which reference it, then the
+     * manifestId-as-tag entry along with its blob references. Blobs left
+     * without references are deleted by the CollectBlobsTask.
+     *
+     * @return false if the repo has no such manifest.
+     */
+    public boolean deleteManifest(String domain, String repoId, String manifestId) {
+        if ( null == domain ) domain = "d0";
+        boolean found = false;
+        for ( String tag : listTags(domain, repoId, manifestId) ) {
+            found |= null != removeTag(domain, repoId, tag);
+        }
+        RegistryManifest manifest = removeTag(domain, repoId, manifestId);
+        if ( null == manifest ) return found;
+        // A put() which found the manifestId-as-tag entry before it was
+        // removed may have added a tag since the tags were listed, which
+        // must not be left without blob references:
+        for ( String tag : listTags(domain, repoId, manifestId) ) {
+            removeTag(domain, repoId, tag);
+        }
+        // clean-up references:
+        Map<String, RegistryBlob> blobs =
+            _blobDb.removeReferences(manifest.getDigests(),
+                                     toReferenceId(domain, repoId, manifestId));
+        // Manifests pushed before storage accounting are not counted:
+        if ( Boolean.TRUE.equals(manifest.getStorageCounted()) ) {
+            accountStorage(domain, repoId, blobs, false);
+        }
+        return true;
+    }
 
+    // Lists the tags (other than the manifestId-as-tag) of a manifest.
+    private List<String> listTags(String domain, String repoId, String manifestId) {
+        List<String> tags = new ArrayList<>();
+        for ( PageIterator it : new PageIterator() ) {
+            for ( RegistryManifest manifest : _byRepoManifestId.queryItems(domain, it)
+                      .beginsWith(toRepoManifestIdRK(repoId, manifestId))
+                      .list() )
+            {
+                if ( ! manifestId.equals(manifest.getTag()) ) tags.add(manifest.getTag());
+            }
+        }
+        return tags;
+    }
+
+    // Returns the removed manifest, or null if the tag did not exist. The
+    // references held by a manifestId-as-tag entry are removed by the caller.
+    private RegistryManifest removeTag(String domain, String repoId, String tag) {
         RegistryManifest manifest = null;
         while ( true ) {
             manifest = _main.getItem(domain, toRK(repoId, tag));
-            if ( null == manifest ) return;
+            if ( null == manifest ) return null;
 
             try {
                 String manifestId = manifest.getManifestId();
@@ -302,66 +421,52 @@ public class RegistryManifestDb extends BaseDb {
                                  (expr) -> expr.eq("id", manifestId));
             } catch ( RollbackException ex ) {
                 continue;
+            } finally {
+                invalidateTag(domain, repoId, tag);
             }
             break;
         }
-        String deletedManifestId = manifest.getManifestId();
-        manifest.setManifestId(null);
-
         if ( ! Tag.isDigest(tag) ) {
-            RepoEvent event = RepoEvent.builder()
-                .domain(manifest.getDomain())
-                .repoId(manifest.getContainerRepoId())
-                .eventType(RepoEventType.DELETE)
-                .eventTime(System.currentTimeMillis())
-                .imageTags(Collections.singletonList(manifest.getTag()))
-                .imageSha(manifest.getManifestId())
-                .build();
-            _eventsDb.save(event);
-            _repoDb.setLastEvent(event.getDomain(), event.getRepoId(), event);
-
-            DockerImage image = DockerImage.builder()
-                .imageTags(event.getImageTags())
-                .pushTime(manifest.getPushTime())
-                .imageSha(manifest.getManifestId())
-                .build();
-
-            notify(manifest, image, event);
-
-            if(log.isDebugEnabled())
-                log.debug(
-                    "Finding pipelines to execute for domain="+manifest.getDomain()+
-                    " repoId="+manifest.getContainerRepoId());
-            for ( PageIterator it : new PageIterator() ) {
-                for ( Pipeline pipeline : _pipelineDb.listByContainerRepoId(
-                          manifest.getDomain(),
-                          manifest.getContainerRepoId(),
-                          it) )
-                {
-                    if(log.isDebugEnabled())
-                        log.debug("Adding Pipeline task for id: "+pipeline.getId());
-                    _tasksDb.addTask(_monitor,
-                                     PipelineTask.builder()
-                                     .domain(manifest.getDomain())
-                                     .tag(manifest.getTag())
-                                     .containerRepoId(manifest.getContainerRepoId())
-                                     .manifestId(manifest.getManifestId())
-                                     .pipelineId(pipeline.getId())
-                                     .build());
+            RegistryManifest event = manifest.toBuilder().build();
+            event.setManifestId(null);
+            addRepoEventTask(RepoEventType.DELETE, event);
+        }
+        return manifest;
+    }
+
+    public RegistryManifest getManifestByRepoIdTag(String domain, String repoId, String tag) {
+        if ( null == domain ) domain = "d0";
+        String key = toTagCacheKey(domain, repoId, tag);
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized ( _tagCache ) {
+            CachedManifest cached = _tagCache.get(key);
+            if ( null != cached && now < cached._expiresAt ) {
+                return cached._manifest.toBuilder().build();
+            }
+            generation = _tagCacheGeneration;
+        }
+        RegistryManifest manifest = _main.getItem(domain, toRK(repoId, tag));
+        if ( null != manifest ) {
+            synchronized ( _tagCache ) {
+                if ( generation == _tagCacheGeneration ) {
+                    _tagCache.put(key, new CachedManifest(manifest.toBuilder().build(), now + TAG_CACHE_TTL_MS));
                 }
             }
         }
+        return manifest;
+    }
 
-        // clean-up references:
-        for ( String digest : manifest.getDigests() ) {
-            _blobDb.removeReference(digest, deletedManifestId);
+    private void invalidateTag(String domain, String repoId, String tag) {
+        if ( null == domain ) domain = "d0";
+        synchronized ( _tagCache ) {
+            _tagCacheGeneration++;
+            _tagCache.remove(toTagCacheKey(domain, repoId, tag));
         }
-
     }
 
-    public RegistryManifest getManifestByRepoIdTag(String domain, String repoId, String tag) {
-        if ( null == domain ) domain = "d0";
-        return _main.getItem(domain, toRK(repoId, tag));
+    private String toTagCacheKey(String domain, String repoId, String tag) {
+        return CompositeKey.build(domain, toRK(repoId, tag));
     }
 
     public List<RegistryManifest> listManifestsByRepoId(String domain, String repoId, PageIterator iterator) {
@@ -394,6 +499,44 @@ public class RegistryManifestDb extends BaseDb {
         }
     }
 
+    // Scans the manifests of all repos, tags and manifestId-as-tag entries alike.
+    public List<RegistryManifest> listAllManifests(PageIterator iterator) {
+        return _byRepoManifestId.scanItems(iterator);
+    }
+
+    /**
+     * Records the blob references of a manifestId-as-tag entry written
+     * before references were recorded per repo (and before storage
+     * accounting), then counts its storage usage. Entries which are
+     * already counted already have their references recorded.
+     *
+     * @return true if the references were recorded by this call.
+     */
+    public boolean addLegacyReferences(RegistryManifest manifest) {
+        String domain = manifest.getDomain();
+        String repoId = manifest.getContainerRepoId();
+        String manifestId = manifest.getManifestId();
+        if ( null == manifestId || ! manifestId.equals(manifest.getTag()) ) return false;
+        if ( Boolean.TRUE.equals(manifest.getStorageCounted()) ) return false;
+        String referenceId = toReferenceId(domain, repoId, manifestId);
+        Map<String, RegistryBlob> blobs = _blobDb.addReferences(manifest.getDigests(), referenceId);
+        try {
+            _main.updateItem(domain, toRK(repoId, manifestId))
+                .set("cnt", true)
+                .when((expr) -> expr.and(
+                          expr.eq("id", manifestId),
+                          expr.not(expr.exists("cnt"))));
+        } catch ( RollbackException ex ) {
+            // Deleted since it was listed:
+            removeUnheldReferences(manifest, blobs.keySet(), referenceId);
+            return false;
+        } finally {
+            invalidateTag(domain, repoId, manifestId);
+        }
+        accountStorage(domain, repoId, blobs, true);
+        return true;
+    }
+
     public List<MultiTaggedManifest> listMultiTaggedManifest(String domain, String repoId, PageIterator outerIter) {
         // Maybe we should throw an exception?
         if ( outerIter.getPageSize() <= 0 ) {
@@ -449,36 +592,19 @@ public class RegistryManifestDb extends BaseDb {
         return result;
     }
 
-    private void notify(RegistryManifest manifest, DockerImage image, RepoEvent event)
+    // The event, webhooks and pipelines are handled asynchronously:
+    private void addRepoEventTask(RepoEventType eventType, RegistryManifest manifest)
     {
-        try {
-            ContainerRepo repo = null;
-            //first get the list of notifications.
-            //for each notification call the notifier
-            List<Notification> notifications = _notificationDb.listNotifications(manifest.getDomain(),
-                                                                                 manifest.getContainerRepoId(),
-                                                                                 new PageIterator().pageSize(100));
-            List<String> nfIdList = new ArrayList<String>();
-            for(Notification notification : notifications)
-            {
-                if ( null == repo ) {
-                    repo = _repoDb.getRepo(manifest.getDomain(), manifest.getContainerRepoId());
-                    if ( null == repo ) {
-                        log.error("Manifest references null ContainerRepo domain="+manifest.getDomain()+
-                                  " repoId="+manifest.getContainerRepoId());
-                        break;
-                    }
-                }
-                if(log.isDebugEnabled())
-                    log.debug("Triggering Notification: "+notification+" for Image: "+image+" and Event: "+event);
-                NotificationId nfId = _notifier.notify(notification, image, repo);
-                if(nfId != null)
-                    nfIdList.add(nfId.toCanonicalId());
-            }
-            _eventsDb.setNotifications(event.getDomain(), event.getRepoId(), event.getId(), nfIdList);
-            event.setNotifications(nfIdList);
-        } catch(Throwable t) {
-            log.error(t.getMessage(), t);
-        }
+        _tasksDb.addTask(_monitor,
+                         RepoEventTask.builder()
+                         .eventId(CompactUUID.randomUUID().toString().toLowerCase())
+                         .eventType(eventType)
+                         .eventTime(System.currentTimeMillis())
+                         .domain(manifest.getDomain())
+                         .containerRepoId(manifest.getContainerRepoId())
+                         .tag(manifest.getTag())
+                         .manifestId(manifest.getManifestId())
+                         .pushTime(manifest.getPushTime())
+                         .build());
     }
 }
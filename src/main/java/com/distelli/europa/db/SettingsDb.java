@@ -36,6 +36,9 @@ import lombok.extern.log4j.Log4j;
 @Singleton
 public class SettingsDb extends BaseDb
 {
+    // Saved position of a scan which went through the whole table:
+    public static final String SCAN_DONE = "#done";
+
     private Index<EuropaSetting> _main;
 
     private final ObjectMapper _om = new ObjectMapper();
@@ -119,6 +122,25 @@ public class SettingsDb extends BaseDb
         return _main.getItem(domain.toLowerCase(), toRK(type, key));
     }
 
+    /**
+     * @return the saved position (PageIterator marker) of a resumable
+     *     background scan, null if it has not started, or SCAN_DONE.
+     */
+    public String getScanMarker(String scanName) {
+        EuropaSetting setting = getSetting(Constants.DOMAIN_ZERO, EuropaSettingType.SCAN, scanName);
+        return ( null == setting ) ? null : setting.getValue();
+    }
+
+    // A null marker saves the scan as SCAN_DONE.
+    public void saveScanMarker(String scanName, String marker) {
+        save(EuropaSetting.builder()
+             .domain(Constants.DOMAIN_ZERO)
+             .type(EuropaSettingType.SCAN)
+             .key(scanName)
+             .value(( null == marker ) ? SCAN_DONE : marker)
+             .build());
+    }
+
     public List<EuropaSetting> listRootSettingsByType(EuropaSettingType type) {
         return listSettingsByType(Constants.DOMAIN_ZERO, type);
     }
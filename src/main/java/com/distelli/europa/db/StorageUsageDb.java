@@ -0,0 +1,236 @@
+package com.distelli.europa.db;
+
+import com.distelli.europa.models.RegistryBlob;
+import com.distelli.europa.models.StorageUsage;
+import com.distelli.jackson.transform.TransformModule;
+import com.distelli.persistence.AttrType;
+import com.distelli.persistence.ConvertMarker;
+import com.distelli.persistence.Index;
+import com.distelli.persistence.IndexDescription;
+import com.distelli.persistence.IndexType;
+import com.distelli.persistence.PageIterator;
+import com.distelli.persistence.TableDescription;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Storage usage counters per repo and per domain, maintained incrementally
+ * as manifests are added to and deleted from repos (see
+ * RegistryManifestDb), so reading the usage never requires a scan.
+ *
+ * A blob is counted once per repo (and domain) which has at least one
+ * manifest referencing it. The blob references of the manifests are used
+ * to decide if the blob is unique to the repo or shared with others.
+ * Blobs without references are not counted, so collecting them does not
+ * change any counters.
+ *
+ * Manifests pushed before the counters existed are counted once the
+ * CollectBlobsTask records their references in the per repo format (see
+ * RegistryManifestDb.addLegacyReferences()).
+ */
+@Log4j
+@Singleton
+public class StorageUsageDb extends BaseDb {
+    private static final String TABLE_NAME = "rusage";
+    private static final String ATTR_DOMAIN = "dom";
+    private static final String ATTR_REPO_ID = "repo";
+    private static final String ATTR_MANIFEST_COUNT = "mc";
+    private static final String ATTR_UNIQUE_BYTES = "ub";
+    private static final String ATTR_SHARED_BYTES = "sb";
+    // Range key of the domain totals:
+    private static final String DOMAIN_TOTALS = "*";
+
+    private Index<StorageUsage> _main;
+
+    private final ObjectMapper _om = new ObjectMapper();
+
+    public static TableDescription getTableDescription() {
+        return TableDescription.builder()
+            .tableName(TABLE_NAME)
+            .indexes(
+                Arrays.asList(
+                    IndexDescription.builder()
+                    .hashKey(attr(ATTR_DOMAIN, AttrType.STR))
+                    .rangeKey(attr(ATTR_REPO_ID, AttrType.STR))
+                    .indexType(IndexType.MAIN_INDEX)
+                    .readCapacity(1L)
+                    .writeCapacity(1L)
+                    .build()))
+            .build();
+    }
+
+    private TransformModule createTransforms(TransformModule module) {
+        module.createTransform(StorageUsage.class)
+            .put(ATTR_DOMAIN, String.class, "domain")
+            .put(ATTR_REPO_ID, String.class, StorageUsageDb::toRepoId, StorageUsageDb::fromRepoId)
+            .put(ATTR_MANIFEST_COUNT, Long.class, "manifestCount")
+            .put(ATTR_UNIQUE_BYTES, Long.class, "uniqueBytes")
+            .put(ATTR_SHARED_BYTES, Long.class, "sharedBytes");
+        return module;
+    }
+
+    private static String toRepoId(StorageUsage usage) {
+        return ( null == usage.getRepoId() ) ? DOMAIN_TOTALS : usage.getRepoId();
+    }
+
+    private static void fromRepoId(StorageUsage usage, String repoId) {
+        usage.setRepoId(DOMAIN_TOTALS.equals(repoId) ? null : repoId);
+    }
+
+    @Inject
+    protected StorageUsageDb(Index.Factory indexFactory,
+                             ConvertMarker.Factory convertMarkerFactory) {
+        _om.registerModule(createTransforms(new TransformModule()));
+
+        _main = indexFactory.create(StorageUsage.class)
+            .withTableDescription(getTableDescription())
+            .withConvertValue(_om::convertValue)
+            .withNoEncrypt(ATTR_MANIFEST_COUNT, ATTR_UNIQUE_BYTES, ATTR_SHARED_BYTES)
+            .build();
+    }
+
+    public StorageUsage getRepoUsage(String domain, String repoId) {
+        StorageUsage usage = _main.getItem(domain, repoId);
+        if ( null != usage ) return usage;
+        return StorageUsage.builder()
+            .domain(domain)
+            .repoId(repoId)
+            .build();
+    }
+
+    public StorageUsage getDomainUsage(String domain) {
+        StorageUsage usage = _main.getItem(domain, DOMAIN_TOTALS);
+        if ( null != usage ) return usage;
+        return StorageUsage.builder()
+            .domain(domain)
+            .build();
+    }
+
+    // Lists the domain totals (repoId null) followed by the usage of the repos in a domain.
+    public List<StorageUsage> listUsage(String domain, PageIterator iterator) {
+        return _main.queryItems(domain, iterator).list();
+    }
+
+    /**
+     * Accounts for a manifest added to a repo.
+     *
+     * @param blobs the blobs referenced by the manifest, as returned by
+     *     RegistryBlobDb.addReferences().
+     */
+    public void manifestAdded(String domain, String repoId, Collection<RegistryBlob> blobs) {
+        account(domain, repoId, blobs, 1);
+    }
+
+    /**
+     * Accounts for a manifest deleted from a repo.
+     *
+     * @param blobs the blobs referenced by the manifest, as returned by
+     *     RegistryBlobDb.removeReferences().
+     */
+    public void manifestRemoved(String domain, String repoId, Collection<RegistryBlob> blobs) {
+        account(domain, repoId, blobs, -1);
+    }
+
+    // Deltas of one counters row: manifests, unique bytes, shared bytes.
+    private static long[] deltas(Map<String, long[]> deltas, String key) {
+        return deltas.computeIfAbsent(key, (k) -> new long[3]);
+    }
+
+    private void account(String domain, String repoId, Collection<RegistryBlob> blobs, int sign) {
+        for ( Map.Entry<String, long[]> entry : computeDeltas(domain, repoId, blobs, sign).entrySet() ) {
+            String key = entry.getKey();
+            int slash = key.indexOf('/');
+            if ( slash < 0 ) {
+                add(key, DOMAIN_TOTALS, entry.getValue());
+            } else {
+                add(key.substring(0, slash), key.substring(slash+1), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Computes the deltas of the counters rows changed by adding (sign=1)
+     * or removing (sign=-1) a manifest of a repo.
+     *
+     * @return domain/repoId (or domain for the domain totals) -> deltas of
+     *     the manifests, unique bytes and shared bytes.
+     */
+    static Map<String, long[]> computeDeltas(String domain, String repoId, Collection<RegistryBlob> blobs, int sign) {
+        String repoKey = RegistryManifestDb.toReferenceOwner(domain, repoId);
+        // Domains never contain '/', so the keys of both never collide:
+        Map<String, long[]> result = new HashMap<>();
+        deltas(result, repoKey)[0] += sign;
+        deltas(result, domain)[0] += sign;
+        for ( RegistryBlob blob : blobs ) {
+            if ( null == blob || null == blob.getSize() ) continue;
+            long size = sign * blob.getSize();
+            Set<String> manifestIds = blob.getManifestIds();
+            if ( null == manifestIds ) manifestIds = Collections.emptySet();
+            int repoReferences = 0;
+            int domainReferences = 0;
+            Set<String> otherRepos = new HashSet<>();
+            Set<String> otherDomains = new HashSet<>();
+            for ( String referenceId : manifestIds ) {
+                String owner = RegistryManifestDb.getReferenceOwner(referenceId);
+                // References in the legacy format are also recorded per
+                // repo once the manifest is counted:
+                if ( null == owner ) continue;
+                String ownerDomain = owner.substring(0, owner.indexOf('/'));
+                if ( repoKey.equals(owner) ) {
+                    repoReferences++;
+                } else {
+                    otherRepos.add(owner);
+                }
+                if ( domain.equals(ownerDomain) ) {
+                    domainReferences++;
+                } else {
+                    otherDomains.add(ownerDomain);
+                }
+            }
+            // After an add the manifest holds 1 reference, after a remove
+            // the last reference is gone:
+            int changed = ( sign > 0 ) ? 1 : 0;
+            if ( repoReferences == changed ) {
+                accountBlob(result, repoKey, otherRepos, size);
+            }
+            if ( domainReferences == changed ) {
+                accountBlob(result, domain, otherDomains, size);
+            }
+        }
+        return result;
+    }
+
+    // A blob was added to (or removed from) key, others are the other owners which reference it:
+    private static void accountBlob(Map<String, long[]> deltas, String key, Set<String> others, long size) {
+        if ( others.isEmpty() ) {
+            deltas(deltas, key)[1] += size;
+            return;
+        }
+        deltas(deltas, key)[2] += size;
+        if ( others.size() == 1 ) {
+            // The only other owner went from unique to shared (or back):
+            long[] other = deltas(deltas, others.iterator().next());
+            other[1] -= size;
+            other[2] += size;
+        }
+    }
+
+    private void add(String domain, String repoId, long[] deltas) {
+        if ( 0 == deltas[0] && 0 == deltas[1] && 0 == deltas[2] ) return;
+        _main.updateItem(domain, repoId)
+            .increment(ATTR_MANIFEST_COUNT, deltas[0])
+            .increment(ATTR_UNIQUE_BYTES, deltas[1])
+            .increment(ATTR_SHARED_BYTES, deltas[2])
+            .always();
+    }
+}
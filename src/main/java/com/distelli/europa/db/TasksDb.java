@@ -271,7 +271,7 @@ public class TasksDb extends BaseDb
     //////////////////////////////////////////////////////////////////////
     // Call this in your task implementation to update the task state:
     //////////////////////////////////////////////////////////////////////
-    public void updateTaskState(String taskId, byte[] taskState) {
+    public void updateTaskState(long taskId, byte[] taskState) {
         _tasks.updateItem(taskId, null)
             .set("st8", taskState)
             .always();
@@ -23,6 +23,7 @@ import com.distelli.europa.ajax.GetNotificationRecord;
 import com.distelli.europa.ajax.GetPipeline;
 import com.distelli.europa.ajax.GetRegionsForProvider;
 import com.distelli.europa.ajax.GetRepoOverview;
+import com.distelli.europa.ajax.GetRepoStorageUsage;
 import com.distelli.europa.ajax.GetSslSettings;
 import com.distelli.europa.ajax.GetStorageSettings;
 import com.distelli.europa.ajax.ListAuthTokens;
@@ -33,6 +34,7 @@ import com.distelli.europa.ajax.ListRepoEvents;
 import com.distelli.europa.ajax.ListRepoManifests;
 import com.distelli.europa.ajax.ListRepoNotifications;
 import com.distelli.europa.ajax.ListReposInRegistry;
+import com.distelli.europa.ajax.ListStorageUsage;
 import com.distelli.europa.ajax.MovePipelineComponent;
 import com.distelli.europa.ajax.NewPipeline;
 import com.distelli.europa.ajax.RedeliverWebhook;
@@ -121,6 +123,8 @@ public class AjaxHelperModule extends AbstractModule
         addBinding(GetRepoOverview.class);
         addBinding(SaveRepoOverview.class);
         addBinding(SetRepoPublic.class);
+        addBinding(GetRepoStorageUsage.class);
+        addBinding(ListStorageUsage.class);
 
         addBinding(SaveSslSettings.class);
         addBinding(GetSslSettings.class);
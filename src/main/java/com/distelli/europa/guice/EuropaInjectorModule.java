@@ -21,6 +21,7 @@ import com.distelli.europa.db.RegistryManifestDb;
 import com.distelli.europa.db.RepoEventsDb;
 import com.distelli.europa.db.SequenceDb;
 import com.distelli.europa.db.SettingsDb;
+import com.distelli.europa.db.StorageUsageDb;
 import com.distelli.europa.db.TasksDb;
 import com.distelli.europa.db.TokenAuthDb;
 import com.distelli.europa.models.DnsSettings;
@@ -39,8 +40,11 @@ import com.distelli.europa.monitor.MonitorTask;
 import com.distelli.europa.registry.RegistryAccess;
 import com.distelli.europa.sync.ImageSyncTask;
 import com.distelli.europa.sync.RepoSyncTask;
+import com.distelli.europa.tasks.CollectBlobsTask;
 import com.distelli.europa.tasks.PipelineTask;
 import com.distelli.europa.tasks.ReapMonitorTask;
+import com.distelli.europa.tasks.ReapUploadsTask;
+import com.distelli.europa.tasks.RepoEventTask;
 import com.distelli.europa.tasks.TaskFactory;
 import com.distelli.europa.util.ObjectKeyFactory;
 import com.distelli.europa.util.PermissionCheck;
@@ -84,6 +88,7 @@ public class EuropaInjectorModule extends AbstractModule
         _tables = new ArrayList<Provider<TableDescription>>();
         addTableDescription(TokenAuthDb.getTableDescription());
         addTableDescription(RegistryBlobDb.getTableDescription());
+        addTableDescription(RegistryBlobDb.getPartsTableDescription());
         addTableDescription(SequenceDb.getTableDescription());
         addTableDescription(ContainerRepoDb.getTableDescription());
         addTableDescription(RegistryCredsDb.getTableDescription());
@@ -93,6 +98,7 @@ public class EuropaInjectorModule extends AbstractModule
         addTableDescription(PipelineDb.getTableDescription());
         addTableDescription(SettingsDb.getTableDescription());
         addTableDescription(MonitorDb.getTableDescription());
+        addTableDescription(StorageUsageDb.getTableDescription());
         addTableDescription(TasksDb.getTasksTableDescription());
         addTableDescription(TasksDb.getLocksTableDescription());
 
@@ -223,6 +229,9 @@ public class EuropaInjectorModule extends AbstractModule
             MapBinder.newMapBinder(binder(), String.class, TaskFactory.class);
         taskFactoryBinder.addBinding(PipelineTask.ENTITY_TYPE).to(PipelineTask.Factory.class);
         taskFactoryBinder.addBinding(ReapMonitorTask.ENTITY_TYPE).to(ReapMonitorTask.Factory.class);
+        taskFactoryBinder.addBinding(ReapUploadsTask.ENTITY_TYPE).to(ReapUploadsTask.Factory.class);
+        taskFactoryBinder.addBinding(RepoEventTask.ENTITY_TYPE).to(RepoEventTask.Factory.class);
+        taskFactoryBinder.addBinding(CollectBlobsTask.ENTITY_TYPE).to(CollectBlobsTask.Factory.class);
         taskFactoryBinder.addBinding(ImageSyncTask.ENTITY_TYPE).to(ImageSyncTask.Factory.class);
         taskFactoryBinder.addBinding(RepoSyncTask.ENTITY_TYPE).to(RepoSyncTask.Factory.class);
     }
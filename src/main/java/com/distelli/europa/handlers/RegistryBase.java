@@ -7,6 +7,7 @@ import com.distelli.europa.models.ContainerRepo;
 import com.distelli.europa.models.RegistryProvider;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
+import com.distelli.europa.util.BufferPool;
 import com.distelli.europa.util.PermissionCheck;
 import com.distelli.persistence.PageIterator;
 import com.distelli.utils.CompactUUID;
@@ -15,12 +16,20 @@ import com.distelli.webserver.RequestHandler;
 import com.distelli.webserver.WebResponse;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.log4j.Log4j;
+import org.eclipse.jetty.server.HttpOutput;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.StringJoiner;
 
@@ -40,6 +49,8 @@ public abstract class RegistryBase extends RequestHandler<EuropaRequestContext>
     private ContainerRepo _repo;
     @Inject
     protected PermissionCheck _permissionCheck;
+    @Inject
+    protected BufferPool _bufferPool;
 
     public WebResponse handleRequest(EuropaRequestContext requestContext) {
         try {
@@ -73,15 +84,101 @@ public abstract class RegistryBase extends RequestHandler<EuropaRequestContext>
         return response;
     }
 
-    protected static void pump(InputStream in, OutputStream out) throws IOException {
-        byte[] buff = new byte[1024*1024];
-        while ( true ) {
-            int len=in.read(buff);
-            if ( len <= 0 ) break;
-            out.write(buff, 0, len);
+    protected void pump(InputStream in, OutputStream out) throws IOException {
+        byte[] buff = _bufferPool.acquire();
+        try {
+            while ( true ) {
+                int len=in.read(buff);
+                if ( len <= 0 ) break;
+                out.write(buff, 0, len);
+            }
+        } finally {
+            _bufferPool.release(buff);
+        }
+    }
+
+    /**
+     * Copies length bytes starting at offset first of a local file to out
+     * without copying the bytes through the java heap. When writing
+     * directly to jetty the file is memory mapped and handed to jetty as
+     * the complete response content, otherwise FileChannel.transferTo is
+     * used.
+     */
+    protected static void pump(File file, long first, long length, OutputStream out) throws IOException {
+        try ( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+            if ( out instanceof HttpOutput && length <= Integer.MAX_VALUE ) {
+                // NOTE: this completes the response.
+                ((HttpOutput)out).sendContent(channel.map(FileChannel.MapMode.READ_ONLY, first, length));
+                return;
+            }
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = first;
+            long end = first + length;
+            while ( position < end ) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if ( transferred <= 0 ) {
+                    throw new EOFException("Unexpected end of "+file+" at position="+position);
+                }
+                position += transferred;
+            }
         }
     }
 
+    /**
+     * Remembers if a write to the client failed, so a client that hung up
+     * can be told apart from a failure to read the object store.
+     */
+    protected static class ClientOutputStream extends FilterOutputStream {
+        private boolean _failed = false;
+
+        public ClientOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public boolean isFailed() {
+            return _failed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch ( IOException ex ) {
+                _failed = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public void write(byte[] buff, int off, int len) throws IOException {
+            try {
+                out.write(buff, off, len);
+            } catch ( IOException ex ) {
+                _failed = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch ( IOException ex ) {
+                _failed = true;
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * @return the file if it is a regular file of the expected length,
+     *     otherwise null (so callers fall back to the object store).
+     */
+    protected static File verifyLocalFile(File file, long expectedLength) {
+        if ( null == file || ! file.isFile() || file.length() != expectedLength ) return null;
+        return file;
+    }
+
     protected String joinWithSlash(String... parts) {
         if ( null == parts || parts.length <= 0 ) return "";
         StringJoiner joiner = new StringJoiner("/");
@@ -142,6 +239,10 @@ public abstract class RegistryBase extends RequestHandler<EuropaRequestContext>
     protected ContainerRepo getOrCreateContainerRepo(String domain, String repoName) {
         ContainerRepo repo = getContainerRepo(domain, repoName);
         if ( null != repo ) return repo;
+        // The miss may be cached, make sure before creating the repo:
+        _repoDb.invalidateLocalRepo(domain, repoName);
+        repo = getContainerRepo(domain, repoName);
+        if ( null != repo ) return repo;
         repo = ContainerRepo.builder()
             .domain(domain)
             .name(repoName)
@@ -1,22 +1,73 @@
 package com.distelli.europa.handlers;
 
 import com.distelli.europa.EuropaRequestContext;
-import org.eclipse.jetty.http.HttpMethod;
-import com.distelli.webserver.RequestHandler;
+import com.distelli.europa.db.RegistryBlobDb;
+import com.distelli.europa.db.SettingsDb;
+import com.distelli.europa.models.RegistryBlob;
+import com.distelli.europa.registry.RegistryError;
+import com.distelli.europa.registry.RegistryErrorCode;
+import com.distelli.europa.tasks.CollectBlobsTask;
+import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.objectStore.ObjectKey;
+import com.distelli.objectStore.ObjectStore;
 import com.distelli.webserver.WebResponse;
-import com.distelli.webserver.RequestContext;
-import com.fasterxml.jackson.databind.JsonNode;
-import javax.inject.Singleton;
-import java.util.Map;
-import java.util.HashMap;
 import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
 import lombok.extern.log4j.Log4j;
 
 @Log4j
 @Singleton
 public class RegistryLayerDelete extends RegistryBase {
+    @Inject
+    private RegistryBlobDb _blobDb;
+    @Inject
+    private SettingsDb _settingsDb;
+    @Inject
+    private Provider<ObjectStore> _objectStoreProvider;
+    @Inject
+    private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
+
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
-        WebResponse response = new WebResponse(200);
-        return response;
+        String digest = requestContext.getMatchedRoute().getParam("digest");
+
+        if ( null == digest || digest.isEmpty() ) {
+            throw new RegistryError("Invalid :digest parameter (must not be empty)",
+                                    RegistryErrorCode.BLOB_UNKNOWN);
+        }
+
+        RegistryBlob blob = _blobDb.getRegistryBlobByDigest(digest.toLowerCase());
+        if ( null == blob ) {
+            throw new RegistryError("Invalid :digest parameter (digest is not known) digest="+digest.toLowerCase(),
+                                    RegistryErrorCode.BLOB_UNKNOWN);
+        }
+        // Blobs are shared by all domains, so only the domain which uploaded
+        // the blob may delete it:
+        String requesterDomain = requestContext.getRequesterDomain();
+        if ( null == requesterDomain || ! requesterDomain.equals(blob.getUploadedBy()) ) {
+            throw new RegistryError("Blob was not uploaded by this account digest="+digest.toLowerCase(),
+                                    RegistryErrorCode.DENIED);
+        }
+        // ...and only once no manifest has referenced it for the same grace
+        // period as the CollectBlobsTask, so a push which is about to
+        // reference it does not fail. Until the references of older
+        // manifests are recorded, a blob without references may be in use:
+        if ( ! SettingsDb.SCAN_DONE.equals(_settingsDb.getScanMarker(CollectBlobsTask.REFERENCES_SCAN)) ||
+             ! CollectBlobsTask.isPastGracePeriod(blob, System.currentTimeMillis()) ||
+             ! _blobDb.deleteUnreferencedBlob(blob.getBlobId(), blob.getUnreferencedTime()) )
+        {
+            throw new RegistryError("Blob is referenced by a manifest, or was referenced less than a day ago, "+
+                                    "delete the manifest(s) first digest="+digest.toLowerCase(),
+                                    RegistryErrorCode.DENIED,
+                                    409);
+        }
+        ObjectKey objKey = _objectKeyFactoryProvider.get().forRegistryBlobId(blob.getBlobId());
+        try {
+            _objectStoreProvider.get().delete(objKey);
+        } catch ( RuntimeException ex ) {
+            // The record is gone, so the object is no longer reachable:
+            log.error("Unable to delete object of blobId="+blob.getBlobId()+": "+ex.getMessage(), ex);
+        }
+        return new WebResponse(202);
     }
 }
@@ -17,8 +17,8 @@ import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
 import com.distelli.objectStore.ObjectStore;
 import com.distelli.objectStore.ObjectKey;
-import com.distelli.objectStore.ObjectMetadata;
 import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.europa.util.VerifiedObjectCache;
 import javax.inject.Provider;
 
 @Log4j
@@ -30,6 +30,8 @@ public class RegistryLayerExists extends RegistryBase {
     private Provider<ObjectStore> _objectStoreProvider;
     @Inject
     private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
+    @Inject
+    private VerifiedObjectCache _verifiedObjectCache;
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
         String ownerDomain = requestContext.getOwnerDomain();
         String name = requestContext.getMatchedRoute().getParam("name");
@@ -47,15 +49,16 @@ public class RegistryLayerExists extends RegistryBase {
         }
         ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
         ObjectKey objKey = objectKeyFactory.forRegistryBlobId(blob.getBlobId());
-        ObjectStore objectStore = _objectStoreProvider.get();
-        // Check that object store is consistent with DB:
-        ObjectMetadata meta = objectStore.head(objKey);
-        if ( null == meta ) {
+        // The size is recorded when the upload finishes, so only older
+        // blobs need to be checked against the object store:
+        Long size = blob.getSize();
+        if ( null == size ) size = _verifiedObjectCache.getContentLength(_objectStoreProvider.get(), objKey);
+        if ( null == size ) {
             throw new RegistryError("Invalid :digest parameter (object key missing "+objKey+")",
                                     RegistryErrorCode.BLOB_UNKNOWN);
         }
         WebResponse response = new WebResponse(200);
-        response.setResponseHeader("Content-Length", ""+blob.getSize());
+        response.setResponseHeader("Content-Length", ""+size);
         String mediaType = blob.getMediaType();
         if ( null != mediaType ) {
             response.setContentType(mediaType);
@@ -66,6 +69,8 @@ public class RegistryLayerExists extends RegistryBase {
         }
         response.setCharacterEncoding(null);
         response.setResponseHeader("Docker-Content-Digest", digest);
+        response.setResponseHeader("Accept-Ranges", "bytes");
+        response.setResponseHeader("ETag", "\""+digest+"\"");
         return response;
     }
 }
@@ -17,9 +17,17 @@ import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
 import com.distelli.objectStore.ObjectStore;
 import com.distelli.objectStore.ObjectKey;
-import com.distelli.objectStore.ObjectMetadata;
+import com.distelli.europa.util.BlobCache;
+import com.distelli.europa.util.BlobRedirector;
+import com.distelli.europa.util.ByteRange;
+import com.distelli.europa.util.CompressionPolicy;
 import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.europa.util.VerifiedObjectCache;
 import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
 
 @Log4j
 @Singleton
@@ -30,6 +38,12 @@ public class RegistryLayerPull extends RegistryBase {
     private Provider<ObjectStore> _objectStoreProvider;
     @Inject
     private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
+    @Inject
+    private BlobCache _blobCache;
+    @Inject
+    private BlobRedirector _blobRedirector;
+    @Inject
+    private VerifiedObjectCache _verifiedObjectCache;
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
         String ownerDomain = requestContext.getOwnerDomain();
         String name = requestContext.getMatchedRoute().getParam("name");
@@ -47,32 +61,115 @@ public class RegistryLayerPull extends RegistryBase {
         }
         ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
         ObjectKey objKey = objectKeyFactory.forRegistryBlobId(blob.getBlobId());
+        URI redirect = _blobRedirector.getRedirect(objKey, blob.getSize());
+        if ( null != redirect ) {
+            // Let the client fetch the blob directly from the object store:
+            WebResponse response = new WebResponse(307);
+            response.setResponseHeader("Location", redirect.toString());
+            response.setResponseHeader("Docker-Content-Digest", digest);
+            return response;
+        }
         ObjectStore objectStore = _objectStoreProvider.get();
-        // Check that object store is consistent with DB:
-        ObjectMetadata objMeta = objectStore.head(objKey);
-        if ( null == objMeta ) {
+        // The size is recorded when the upload finishes, so only older
+        // blobs need to be checked against the object store:
+        Long blobSize = blob.getSize();
+        if ( null == blobSize ) blobSize = _verifiedObjectCache.getContentLength(objectStore, objKey);
+        if ( null == blobSize ) {
             throw new RegistryError("Invalid :digest parameter (object key missing "+objKey+")",
                                     RegistryErrorCode.BLOB_UNKNOWN);
         }
-        WebResponse response = new WebResponse(200);
-        // NOTE: Response is gzip'ed, so we can't set the content-length!
-        // response.setResponseHeader("Content-Length", ""+blob.getSize());
+        long size = blobSize;
+        String etag = "\""+digest+"\"";
+        ByteRange range = ByteRange.ifRangeMatches(requestContext.getHeaderValue("If-Range"), etag)
+            ? ByteRange.parse(requestContext.getHeaderValue("Range"), size)
+            : null;
+        if ( null != range && ! range.isSatisfiable() ) {
+            throw rangeNotSatisfiable(range);
+        }
+
+        WebResponse response = new WebResponse(null == range ? 200 : 206);
         String mediaType = blob.getMediaType();
-        if ( null != mediaType ) {
-            response.setContentType(mediaType);
-        } else {
+        if ( null == mediaType ) {
             // Assume a v1 manifest due to this bug:
             // https://github.com/docker/distribution/issues/2084
-            response.setContentType("application/vnd.docker.container.image.v1+json");
+            mediaType = "application/vnd.docker.container.image.v1+json";
         }
+        response.setContentType(mediaType);
         response.setCharacterEncoding(null);
         response.setResponseHeader("Docker-Content-Digest", digest);
-        response.setResponseWriter(
-            (out) -> objectStore.get(objKey, (meta, in) -> {
-                    pump(in, out);
-                    return null;
-                }));
+        response.setResponseHeader("Accept-Ranges", "bytes");
+        response.setResponseHeader("ETag", etag);
+        if ( null == range ) {
+            CompressionPolicy.apply(response, mediaType, size);
+            response.setResponseWriter(
+                (out) -> writeBlob(out, objectStore, objectKeyFactory, objKey, digest, size, null));
+        } else {
+            // A partial response must be sent as-is, setting the
+            // Content-Encoding disables the gzip of the response:
+            response.setResponseHeader("Content-Encoding", "identity");
+            response.setResponseHeader("Content-Range", range.toContentRange());
+            response.setResponseHeader("Content-Length", ""+range.getLength());
+            response.setResponseWriter(
+                (out) -> writeBlob(out, objectStore, objectKeyFactory, objKey, digest, size, range));
+        }
 
         return response;
     }
+
+    private void writeBlob(OutputStream out,
+                           ObjectStore objectStore,
+                           ObjectKeyFactory objectKeyFactory,
+                           ObjectKey objKey,
+                           String digest,
+                           long size,
+                           ByteRange range)
+        throws IOException
+    {
+        File file = getLocalFile(objectKeyFactory, objKey, digest, size);
+        if ( null != file ) {
+            if ( null == range ) {
+                pump(file, 0, size, out);
+            } else {
+                pump(file, range.getFirst(), range.getLength(), out);
+            }
+            return;
+        }
+        ClientOutputStream clientOut = new ClientOutputStream(out);
+        try {
+            if ( null == range ) {
+                _blobCache.get(objectStore, objKey, digest, size, (in) -> {
+                        pump(in, clientOut);
+                        return null;
+                    });
+            } else {
+                _blobCache.get(objectStore, objKey, digest, range.getFirst(), range.getLast(), (in) -> {
+                        pump(in, clientOut);
+                        return null;
+                    });
+            }
+        } catch ( IOException | RuntimeException ex ) {
+            // A client that hung up says nothing about the object store:
+            if ( ! clientOut.isFailed() ) _verifiedObjectCache.readFailed(objectStore, objKey);
+            throw ex;
+        }
+    }
+
+    // Blob content that is already a local file can be sent zero-copy:
+    private File getLocalFile(ObjectKeyFactory objectKeyFactory, ObjectKey objKey, String digest, long size) {
+        File file = verifyLocalFile(_blobCache.getFile(digest), size);
+        if ( null != file ) return file;
+        return verifyLocalFile(objectKeyFactory.toLocalFile(objKey), size);
+    }
+
+    private RegistryError rangeNotSatisfiable(ByteRange range) {
+        return new RegistryError("Requested range not satisfiable, Content-Range: "+range.toContentRange(),
+                                 RegistryErrorCode.RANGE_NOT_SATISFIABLE) {
+            public Map<String, String> getResponseHeaders() {
+                return new HashMap<String, String>() {{
+                    put("Content-Range", range.toContentRange());
+                    put("Accept-Ranges", "bytes");
+                }};
+            }
+        };
+    }
 }
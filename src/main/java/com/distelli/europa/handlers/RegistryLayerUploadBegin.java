@@ -4,6 +4,7 @@ import com.distelli.europa.EuropaRequestContext;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
 import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.europa.util.StorageQuota;
 import com.distelli.europa.db.RegistryBlobDb;
 import com.distelli.europa.models.RegistryBlob;
 import org.eclipse.jetty.http.HttpMethod;
@@ -16,9 +17,14 @@ import java.util.Map;
 import java.util.HashMap;
 import javax.inject.Inject;
 import lombok.extern.log4j.Log4j;
+import com.distelli.objectStore.ObjectKey;
 import com.distelli.objectStore.ObjectStore;
 import com.distelli.objectStore.ObjectPartKey;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import javax.inject.Provider;
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
 
 @Log4j
 @Singleton
@@ -29,16 +35,97 @@ public class RegistryLayerUploadBegin extends RegistryBase {
     private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
     @Inject
     private RegistryBlobDb _blobDb;
+    @Inject
+    private StorageQuota _storageQuota;
 
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
-        String digest = requestContext.getMatchedRoute().getParam("digest");
+        String digest = requestContext.getParameter("digest");
         if ( null == digest ) return handleMultipartInit(requestContext);
-        return handleMonolithicUpload(requestContext);
+        try {
+            return handleMonolithicUpload(requestContext, digest);
+        } catch ( RuntimeException ex ) {
+            throw ex;
+        } catch ( Exception ex ) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * POST /v2/:name/blobs/uploads?digest=... with the blob as the body,
+     * streamed to a single object store put. A Content-Length is required,
+     * since the object store put needs the length up front (clients
+     * without one can use a chunked upload).
+     */
+    private WebResponse handleMonolithicUpload(EuropaRequestContext requestContext, String digest) throws Exception {
+        String ownerUsername = requestContext.getOwnerUsername();
+        String name = requestContext.getMatchedRoute().getParam("name");
+        if ( ! digest.matches("^sha256:[0-9a-fA-F]{64}$") ) {
+            throw new RegistryError("Invalid digest, must be sha256:<hex> got="+digest,
+                                    RegistryErrorCode.DIGEST_INVALID);
+        }
+        digest = digest.toLowerCase();
+
+        long contentLength = requestContext.getContentLength();
+        if ( contentLength < 0 ) {
+            throw new RegistryError("Content-Length is required for a monolithic upload",
+                                    RegistryErrorCode.SIZE_INVALID,
+                                    411);
+        }
+
+        RegistryBlob existing = _blobDb.getRegistryBlobByDigest(digest);
+        // Upload unless the same content is already stored (and was not just collected):
+        if ( null == existing || ! _blobDb.recordReuse(existing.getBlobId()) ) {
+            checkStorageQuota(requestContext, contentLength);
+            uploadBlob(requestContext, digest, contentLength);
+        }
+
+        WebResponse response = new WebResponse(201);
+        response.setContentType("text/plain");
+        response.setResponseHeader("Location", joinWithSlash("/v2", ownerUsername, name, "blobs", digest));
+        response.setResponseHeader("Docker-Content-Digest", digest);
+        return response;
     }
 
-    private WebResponse handleMonolithicUpload(EuropaRequestContext requestContext) {
-        // TODO: support this API too...
-        throw new UnsupportedOperationException();
+    private void uploadBlob(EuropaRequestContext requestContext, String digest, long contentLength) throws Exception {
+        InputStream is = requestContext.getRequestStream();
+
+        ObjectStore objectStore = _objectStoreProvider.get();
+        ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
+        RegistryBlob blob = _blobDb.newRegistryBlob(requestContext.getRequesterDomain());
+        ObjectKey objKey = objectKeyFactory.forRegistryBlobId(blob.getBlobId());
+        boolean success = false;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            objectStore.put(objKey, contentLength, new DigestInputStream(is, md));
+            String computed = "sha256:" + printHexBinary(md.digest()).toLowerCase();
+            if ( ! digest.equals(computed) ) {
+                throw new RegistryError("Invalid digest, expected "+computed+", but got "+digest,
+                                        RegistryErrorCode.DIGEST_INVALID);
+            }
+            _blobDb.finishUpload(blob.getBlobId(),
+                                 null,
+                                 digest,
+                                 contentLength,
+                                 requestContext.getContentType());
+            success = true;
+        } finally {
+            // Try to cleanup on failure...
+            if ( ! success ) {
+                _blobDb.forgetBlob(blob.getBlobId());
+                try {
+                    objectStore.delete(objKey);
+                } catch ( Exception ex ) {
+                    log.error("Unable to delete "+objKey+": "+ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    private void checkStorageQuota(EuropaRequestContext requestContext, long contentLength) {
+        if ( ! _storageQuota.isEnabled() ) return;
+        String ownerDomain = requestContext.getOwnerDomain();
+        String name = requestContext.getMatchedRoute().getParam("name");
+        _storageQuota.check(ownerDomain, getContainerRepo(ownerDomain, name), contentLength);
     }
 
     private WebResponse handleMultipartInit(EuropaRequestContext requestContext) {
@@ -56,6 +143,7 @@ public class RegistryLayerUploadBegin extends RegistryBase {
                 return response;
             }
         }
+        checkStorageQuota(requestContext, 0);
         RegistryBlob blob = null;
         ObjectPartKey partKey = null;
 
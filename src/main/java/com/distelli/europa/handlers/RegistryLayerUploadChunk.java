@@ -6,30 +6,43 @@ import com.distelli.europa.models.RegistryBlob;
 import com.distelli.europa.models.RegistryBlobPart;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
-import com.distelli.europa.security.JDKMessageDigest;
+import com.distelli.europa.security.ResumableSha256;
 import com.distelli.europa.util.ObjectKeyFactory;
 import com.distelli.objectStore.ObjectKey;
 import com.distelli.objectStore.ObjectPartId;
 import com.distelli.objectStore.ObjectPartKey;
 import com.distelli.objectStore.ObjectStore;
-import com.distelli.utils.CountingInputStream;
-import com.distelli.utils.ResettableInputStream;
 import com.distelli.webserver.RequestContext;
 import com.distelli.webserver.RequestHandler;
 import com.distelli.webserver.WebResponse;
 import com.fasterxml.jackson.databind.JsonNode;
+import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.EntityNotFoundException;
 import lombok.extern.log4j.Log4j;
-import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.eclipse.jetty.http.HttpMethod;
 import javax.inject.Provider;
 
@@ -37,6 +50,20 @@ import javax.inject.Provider;
 @Singleton
 public class RegistryLayerUploadChunk extends RegistryBase {
     private static long MIN_SIZE = 5*1048576;
+    private static final int PART_SIZE = 2*5*1048576;
+    private static final int MAX_PARTS_IN_FLIGHT = 4;
+    // A push reads the body into its own part buffer, then hands the full
+    // buffer to PART_UPLOADS. The buffers being uploaded are shared by all
+    // the uploads on this node, so they use at most MAX_PART_BUFFERS *
+    // PART_SIZE of heap. A permit is only held while a part is uploaded to
+    // the object store, never while a (slow) client is read. A push fails
+    // if it waits too long for a permit:
+    private static final int MAX_PART_BUFFERS = 8;
+    private static final long PART_UPLOAD_PERMIT_TIMEOUT_MS = 60000;
+    private static final Semaphore PART_UPLOAD_PERMITS = new Semaphore(MAX_PART_BUFFERS, true);
+    // Idle buffers, reused by the next push:
+    private static final Queue<byte[]> PART_BUFFERS = new ConcurrentLinkedQueue<>();
+    private static final ExecutorService PART_UPLOADS = createPartUploadsExecutor();
 
     @Inject
     private Provider<ObjectStore> _objectStoreProvider;
@@ -45,6 +72,24 @@ public class RegistryLayerUploadChunk extends RegistryBase {
     @Inject
     private RegistryBlobDb _blobDb;
 
+    private static ExecutorService createPartUploadsExecutor() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        // At most MAX_PART_BUFFERS parts are in flight, so the queue never
+        // fills up, but if it does the request thread uploads the part:
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_PART_BUFFERS, MAX_PART_BUFFERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_PART_BUFFERS),
+            (runnable) -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setName(String.format("PartUpload-%d", threadCounter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
         try {
             return handleRegistryRequest(requestContext, false);
@@ -64,69 +109,270 @@ public class RegistryLayerUploadChunk extends RegistryBase {
             throw new RegistryError("Invalid :uuid parameter (must not be empty)",
                                     RegistryErrorCode.BLOB_UPLOAD_UNKNOWN);
         }
-        RegistryBlob blob = _blobDb.getRegistryBlobById(blobId);
+        RegistryBlob blob = _blobDb.getUploadSession(blobId);
+        Long[] contentRange = parseRange(requestContext.getHeaderValue("Content-Range"));
+        if ( null != blob && null != contentRange && contentRange[0] != getPartsSize(blob) ) {
+            // The client has a different view of the upload, the chunk
+            // before may have been handled by a different node:
+            _blobDb.invalidateUploadSession(blobId);
+            blob = _blobDb.getUploadSession(blobId);
+        }
+        checkUploadSession(blob);
+        long contentLength = requestContext.getContentLength();
+        int partNum = 0;
+        if ( 0 != contentLength ) {
+            // Reserving a block of part numbers confirms the session is
+            // current, the parts uploaded with the block are checked by
+            // addParts():
+            try {
+                partNum = _blobDb.takePartNums(blob, 1);
+            } catch ( ConcurrentModificationException ex ) {
+                // The cached session is stale (it was dropped by
+                // reservePartNums()), the chunk before may have been
+                // handled by a different node:
+                blob = _blobDb.getUploadSession(blobId);
+                checkUploadSession(blob);
+                partNum = _blobDb.takePartNums(blob, 1);
+            }
+        }
         log.debug(blob);
+        ObjectPartKey partKey = getObjectPartKey(blobId, blob.getUploadId());
+
+        long totalSize = getPartsSize(blob);
+        ResumableSha256 digest = ResumableSha256.newInstance(blob.getMdEncodedState());
+
+        InputStream is = requestContext.getRequestStream();
+        if ( 0 == contentLength ) {
+            // Nothing to upload.
+        } else if ( contentLength > 0 && contentLength <= PART_SIZE ) {
+            checkLastPartSize(blob, requestContext, totalSize);
+            uploadPart(blob, partKey, partNum, contentLength, is, digest);
+        } else {
+            // Large bodies and bodies without a Content-Length (chunked
+            // transfer encoding) are cut into parts as they stream in:
+            contentLength = uploadParts(blob, requestContext, totalSize, partKey, partNum, is, digest);
+        }
+        WebResponse response = new WebResponse(201);
+        response.setContentType("text/plain");
+        response.setResponseHeader("Range", "0-"+(totalSize+contentLength-1));
+        response.setResponseHeader("Docker-Upload-UUID", blobId);
+        response.setResponseHeader("Location", joinWithSlash("/v2", ownerUsername, name, "blobs/uploads", blobId));
+        return response;
+    }
+
+    private void checkUploadSession(RegistryBlob blob) {
         if ( null == blob ) {
             throw new RegistryError("Invalid :uuid parameter", RegistryErrorCode.BLOB_UPLOAD_UNKNOWN);
         }
         if ( null == blob.getUploadId() ) {
             throw new RegistryError("The :uuid parameter specifies an upload that already succeeded.", RegistryErrorCode.BLOB_UPLOAD_INVALID);
         }
-        ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
-        ObjectKey objKey = objectKeyFactory.forRegistryBlobId(blobId);
-        ObjectPartKey partKey = getObjectPartKey(blobId, blob.getUploadId());
+    }
+
+    // Every part except the last must be at least MIN_SIZE:
+    private void checkLastPartSize(RegistryBlob blob, EuropaRequestContext requestContext, long totalSize) {
+        if ( getPartCount(blob) > 0 ) {
+            long lastSize = blob.getLastPartSize();
+            if ( lastSize < MIN_SIZE ) {
+                // Last chunk needs to be uploaded too:
+                throw rangeNotSatisfiable("Minimum chunk size="+MIN_SIZE, requestContext, totalSize-lastSize);
+            }
+        }
+    }
 
-        long totalSize = getTotalSize(blob.getPartIds());
-        int partNum = getLength(blob.getPartIds()) + 1;
+    // Uploads a single part while updating the digest.
+    private void uploadPart(RegistryBlob blob,
+                            ObjectPartKey partKey,
+                            int partNum,
+                            long length,
+                            InputStream is,
+                            ResumableSha256 digest)
+    {
+        String blobId = blob.getBlobId();
+        is = new DigestInputStream(is, digest);
         ObjectPartId partId = null;
-        SHA256Digest digest =  ( null == blob.getMdEncodedState() )
-            ? new SHA256Digest()
-            : new SHA256Digest(blob.getMdEncodedState());
+        try {
+            ObjectStore objectStore = _objectStoreProvider.get();
+            partId = objectStore.multipartPut(partKey, partNum, length, is);
+        } catch ( EntityNotFoundException ex ) {
+            // Forget about this upload in our DB then...
+            _blobDb.forgetBlob(blobId);
+            throw new RegistryError("Invalid :uuid parameter", RegistryErrorCode.BLOB_UPLOAD_UNKNOWN);
+        }
+        RegistryBlobPart blobPart = RegistryBlobPart.builder()
+            .chunkSize(length)
+            .partNum(partId.getPartNum())
+            .partId(partId.getPartId())
+            .build();
+        log.debug(blobPart);
+        _blobDb.addPart(blob, blobPart, digest.getEncodedState());
+    }
 
-        InputStream is = requestContext.getRequestStream();
-        long contentLength = requestContext.getContentLength();
-        if ( contentLength <= 0 ) {
-            // we must count first:
-            is = new ResettableInputStream(is);
-            CountingInputStream counter = new CountingInputStream(is);
-            byte[] chunk = new byte[1024*1024];
-            while ( counter.read(chunk) > 0 );
-            contentLength = counter.getCount();
-            is.reset();
-        }
-        if ( contentLength > 0 ) {
-            int size = blob.getPartIds().size();
-            if ( size > 0 ) {
-                long lastSize = blob.getPartIds().get(size-1).getChunkSize();
-                if ( lastSize < MIN_SIZE ) {
-                    // Last chunk needs to be uploaded too:
-                    throw rangeNotSatisfiable("Minimum chunk size="+MIN_SIZE, requestContext, totalSize-lastSize);
-                }
-            }
+    // Returns a buffer to read a part into.
+    private static byte[] takePartBuffer() {
+        byte[] buff = PART_BUFFERS.poll();
+        return ( null == buff ) ? new byte[PART_SIZE] : buff;
+    }
+
+    private static void recyclePartBuffer(byte[] buff) {
+        if ( PART_BUFFERS.size() < MAX_PART_BUFFERS ) PART_BUFFERS.offer(buff);
+    }
+
+    private static void acquireUploadPermit() throws InterruptedException {
+        if ( ! PART_UPLOAD_PERMITS.tryAcquire(PART_UPLOAD_PERMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS) ) {
+            throw new RegistryError("Too many concurrent uploads, retry later",
+                                    RegistryErrorCode.SERVER_ERROR,
+                                    503);
+        }
+    }
+
+    // Uploads a part from a part buffer, the buffer and upload permit are
+    // released once the upload is done or skipped:
+    private static class PartUpload implements Callable<RegistryBlobPart> {
+        private final AtomicBoolean _claimed = new AtomicBoolean();
+        private final ObjectStore _objectStore;
+        private final ObjectPartKey _partKey;
+        private final int _partNum;
+        private final byte[] _buff;
+        private final int _len;
+        private final Semaphore _inFlight;
+
+        private PartUpload(ObjectStore objectStore, ObjectPartKey partKey, int partNum,
+                           byte[] buff, int len, Semaphore inFlight)
+        {
+            _objectStore = objectStore;
+            _partKey = partKey;
+            _partNum = partNum;
+            _buff = buff;
+            _len = len;
+            _inFlight = inFlight;
+        }
 
-            is = new DigestInputStream(is, new JDKMessageDigest(digest));
+        @Override
+        public RegistryBlobPart call() throws Exception {
+            if ( ! _claimed.compareAndSet(false, true) ) return null;
             try {
-                ObjectStore objectStore = _objectStoreProvider.get();
-                partId = objectStore.multipartPut(partKey, partNum, contentLength, is);
-            } catch ( EntityNotFoundException ex ) {
-                // Forget about this upload in our DB then...
-                _blobDb.forgetBlob(blobId);
-                throw new RegistryError("Invalid :uuid parameter", RegistryErrorCode.BLOB_UPLOAD_UNKNOWN);
+                ObjectPartId partId = _objectStore.multipartPut(
+                    _partKey, _partNum, _len, new ByteArrayInputStream(_buff, 0, _len));
+                return RegistryBlobPart.builder()
+                    .chunkSize((long)_len)
+                    .partNum(partId.getPartNum())
+                    .partId(partId.getPartId())
+                    .build();
+            } finally {
+                release();
             }
-            RegistryBlobPart blobPart = RegistryBlobPart.builder()
-                .chunkSize(contentLength)
-                .partNum(partId.getPartNum())
-                .partId(partId.getPartId())
-                .build();
-            log.debug(blobPart);
-            _blobDb.addPart(blobId, partNum, blobPart, blob.getMdEncodedState(), digest.getEncodedState());
         }
-        WebResponse response = new WebResponse(201);
-        response.setContentType("text/plain");
-        response.setResponseHeader("Range", "0-"+(totalSize+contentLength-1));
-        response.setResponseHeader("Docker-Upload-UUID", blobId);
-        response.setResponseHeader("Location", joinWithSlash("/v2", ownerUsername, name, "blobs/uploads", blobId));
-        return response;
+
+        // Prevents the upload from starting, a started upload releases the buffer itself:
+        public void skip() {
+            if ( _claimed.compareAndSet(false, true) ) release();
+        }
+
+        private void release() {
+            recyclePartBuffer(_buff);
+            PART_UPLOAD_PERMITS.release();
+            _inFlight.release();
+        }
+    }
+
+    /**
+     * Cuts the body into PART_SIZE parts which are uploaded concurrently,
+     * while the digest is updated in order on this thread. A single upload
+     * has at most MAX_PARTS_IN_FLIGHT parts being uploaded.
+     * A part number is taken for each part before it is uploaded (the
+     * first is taken by the caller), and all the parts are recorded in a
+     * single DB update once they are uploaded.
+     *
+     * @return the number of bytes uploaded.
+     */
+    private long uploadParts(RegistryBlob blob,
+                             EuropaRequestContext requestContext,
+                             long totalSize,
+                             ObjectPartKey partKey,
+                             int firstPartNum,
+                             InputStream is,
+                             ResumableSha256 digest)
+        throws IOException, InterruptedException
+    {
+        String blobId = blob.getBlobId();
+        ObjectStore objectStore = _objectStoreProvider.get();
+        Semaphore inFlight = new Semaphore(MAX_PARTS_IN_FLIGHT);
+        List<PartUpload> uploads = new ArrayList<>();
+        List<Future<RegistryBlobPart>> futures = new ArrayList<>();
+        long length = 0;
+        boolean success = false;
+        // The buffer being read into, null once it is handed to an upload:
+        byte[] buff = takePartBuffer();
+        try {
+            while ( true ) {
+                // Wait for an upload of this request to finish:
+                inFlight.acquire();
+                PartUpload upload = null;
+                int len = 0;
+                try {
+                    len = readFully(is, buff);
+                    if ( len <= 0 ) break;
+                    if ( 0 == length ) checkLastPartSize(blob, requestContext, totalSize);
+                    int partNum = futures.isEmpty()
+                        ? firstPartNum
+                        : _blobDb.takePartNums(blob, 1);
+                    digest.update(buff, 0, len);
+                    acquireUploadPermit();
+                    upload = new PartUpload(objectStore, partKey, partNum, buff, len, inFlight);
+                    buff = null;
+                    uploads.add(upload);
+                    futures.add(PART_UPLOADS.submit(upload));
+                } finally {
+                    if ( null == upload ) inFlight.release();
+                }
+                length += len;
+                if ( len < PART_SIZE ) break;
+                buff = takePartBuffer();
+            }
+            List<RegistryBlobPart> parts = new ArrayList<>(futures.size());
+            for ( Future<RegistryBlobPart> future : futures ) {
+                try {
+                    parts.add(future.get());
+                } catch ( ExecutionException ex ) {
+                    if ( ex.getCause() instanceof EntityNotFoundException ) {
+                        // Forget about this upload in our DB then...
+                        _blobDb.forgetBlob(blobId);
+                        throw new RegistryError("Invalid :uuid parameter", RegistryErrorCode.BLOB_UPLOAD_UNKNOWN);
+                    }
+                    if ( ex.getCause() instanceof IOException ) throw (IOException)ex.getCause();
+                    if ( ex.getCause() instanceof RuntimeException ) throw (RuntimeException)ex.getCause();
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+            if ( ! parts.isEmpty() ) {
+                log.debug(parts);
+                _blobDb.addParts(blob, parts, digest.getEncodedState());
+            }
+            success = true;
+        } finally {
+            if ( null != buff ) recyclePartBuffer(buff);
+            if ( ! success ) {
+                for ( PartUpload upload : uploads ) {
+                    upload.skip();
+                }
+                for ( Future<RegistryBlobPart> future : futures ) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return length;
+    }
+
+    // Reads until buff is full or the end of stream is reached.
+    private static int readFully(InputStream is, byte[] buff) throws IOException {
+        int offset = 0;
+        while ( offset < buff.length ) {
+            int len = is.read(buff, offset, buff.length - offset);
+            if ( len < 0 ) break;
+            offset += len;
+        }
+        return offset;
     }
 
     protected ObjectPartKey getObjectPartKey(String blobId, String uploadId) {
@@ -165,13 +411,13 @@ public class RegistryLayerUploadChunk extends RegistryBase {
         };
     }
 
-    private int getLength(List<RegistryBlobPart> partIds) {
-        if ( null == partIds ) return 0;
-        return partIds.size();
+    private int getPartCount(RegistryBlob blob) {
+        if ( null == blob.getPartCount() ) return 0;
+        return blob.getPartCount();
     }
 
-    private long getTotalSize(List<RegistryBlobPart> partIds) {
-        if ( null == partIds ) return 0;
-        return partIds.stream().mapToLong((part) -> part.getChunkSize()).sum();
+    private long getPartsSize(RegistryBlob blob) {
+        if ( null == blob.getPartsSize() ) return 0;
+        return blob.getPartsSize();
     }
 }
@@ -15,7 +15,7 @@ import com.distelli.europa.db.RegistryBlobDb;
 import com.distelli.europa.models.RegistryBlob;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
-import org.bouncycastle.crypto.digests.SHA256Digest;
+import com.distelli.europa.security.ResumableSha256;
 import static javax.xml.bind.DatatypeConverter.printHexBinary;
 import java.util.List;
 import java.util.ArrayList;
@@ -50,8 +50,10 @@ public class RegistryLayerUploadFinish extends RegistryLayerUploadChunk {
         } catch ( Exception ex ) {
             throw new RuntimeException(ex);
         }
+        // Read the row, the digest state is not validated by a bodiless PUT,
+        // so the session cached on this node may be stale:
         RegistryBlob blob = _blobDb.getRegistryBlobById(blobId);
-        if ( null == blob ) {
+        if ( null == blob || null == blob.getUploadId() ) {
             throw new RegistryError("Concurrent upload finish detected for blobId="+blobId,
                                     RegistryErrorCode.BLOB_UPLOAD_INVALID);
         }
@@ -59,18 +61,53 @@ public class RegistryLayerUploadFinish extends RegistryLayerUploadChunk {
         ObjectPartKey partKey = getObjectPartKey(blobId, blob.getUploadId());
 
         ObjectStore objectStore = _objectStoreProvider.get();
-        objectStore.completePut(partKey, toObjectPartIds(blob.getPartIds()));
+        RegistryBlob existing = _blobDb.getRegistryBlobByDigest(digest);
+        // Same content is already stored, so drop this upload and use the
+        // existing blob, unless it was just collected:
+        if ( null != existing && _blobDb.recordReuse(existing.getBlobId()) ) {
+            try {
+                objectStore.abortPut(partKey);
+            } catch ( Exception ex ) {
+                log.error("Unable to abort upload of duplicate blobId="+blobId+": "+ex.getMessage(), ex);
+            }
+            _blobDb.forgetBlob(blobId);
+            return finished(ownerUsername, name, digest);
+        }
+        List<RegistryBlobPart> parts = _blobDb.getParts(blob);
+        checkParts(blob, parts);
+        objectStore.completePut(partKey, toObjectPartIds(parts));
         _blobDb.finishUpload(blobId,
                              blob.getMdEncodedState(),
                              digest,
-                             getTotalSize(blob.getPartIds()),
+                             ( null == blob.getPartsSize() ) ? 0 : blob.getPartsSize(),
                              requestContext.getContentType());
+        return finished(ownerUsername, name, digest);
+    }
+
+    private WebResponse finished(String ownerUsername, String name, String digest) {
         WebResponse response = new WebResponse(201);
         response.setResponseHeader("Location", joinWithSlash("/v2", ownerUsername, name, "blobs", digest));
         response.setResponseHeader("Docker-Content-Digest", digest);
         return response;
     }
 
+    // The part records are written after the row is updated, make sure
+    // none are missing (the node recording them died):
+    private void checkParts(RegistryBlob blob, List<RegistryBlobPart> parts) {
+        long partsSize = 0;
+        for ( RegistryBlobPart part : parts ) {
+            partsSize += part.getChunkSize();
+        }
+        int expectCount = ( null == blob.getPartCount() ) ? 0 : blob.getPartCount();
+        long expectSize = ( null == blob.getPartsSize() ) ? 0 : blob.getPartsSize();
+        if ( parts.size() != expectCount || partsSize != expectSize ) {
+            throw new RegistryError("Upload of blobId="+blob.getBlobId()+" is missing parts, expected "+
+                                    expectCount+" parts of "+expectSize+" bytes, but got "+
+                                    parts.size()+" parts of "+partsSize+" bytes",
+                                    RegistryErrorCode.BLOB_UPLOAD_INVALID);
+        }
+    }
+
     private List<ObjectPartId> toObjectPartIds(List<RegistryBlobPart> parts) {
         List<ObjectPartId> partIds = new ArrayList<>(parts.size());
         for ( RegistryBlobPart part : parts ) {
@@ -82,15 +119,8 @@ public class RegistryLayerUploadFinish extends RegistryLayerUploadChunk {
         return partIds;
     }
 
-    private long getTotalSize(List<RegistryBlobPart> partIds) {
-        if ( null == partIds ) return 0;
-        return partIds.stream().mapToLong((part) -> part.getChunkSize()).sum();
-    }
-
     private void validateDigest(String digest, byte[] encodedState) {
-        SHA256Digest computedDigest = new SHA256Digest(encodedState);
-        byte[] computedBytes = new byte[computedDigest.getDigestSize()];
-        computedDigest.doFinal(computedBytes, 0);
+        byte[] computedBytes = ResumableSha256.newInstance(encodedState).digest();
         String computed = "sha256:" + printHexBinary(computedBytes);
         computed = computed.toLowerCase();
         if ( ! digest.equals(computed) ) {
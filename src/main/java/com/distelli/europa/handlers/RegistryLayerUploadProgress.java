@@ -1,10 +1,8 @@
 package com.distelli.europa.handlers;
 
-import java.util.List;
 import com.distelli.europa.EuropaRequestContext;
 import com.distelli.europa.db.RegistryBlobDb;
 import com.distelli.europa.models.RegistryBlob;
-import com.distelli.europa.models.RegistryBlobPart;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
 import org.eclipse.jetty.http.HttpMethod;
@@ -43,7 +41,7 @@ public class RegistryLayerUploadProgress extends RegistryBase {
         }
         // TODO: Validate the uploadId... just not sure how to do that with current
         // ObjectStore API (and this isn't that important)...
-        long totalSize = getTotalSize(blob.getPartIds());
+        long totalSize = ( null == blob.getPartsSize() ) ? 0 : blob.getPartsSize();
 
         WebResponse response = new WebResponse(204);
         response.setContentType("text/plain");
@@ -52,9 +50,4 @@ public class RegistryLayerUploadProgress extends RegistryBase {
         response.setResponseHeader("Location", joinWithSlash("/v2", ownerUsername, name, "blobs/uploads", blobId));
         return response;
     }
-
-    private long getTotalSize(List<RegistryBlobPart> partIds) {
-        if ( null == partIds ) return 0;
-        return partIds.stream().mapToLong((part) -> part.getChunkSize()).sum();
-    }
 }
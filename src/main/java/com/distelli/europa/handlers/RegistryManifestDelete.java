@@ -1,22 +1,48 @@
 package com.distelli.europa.handlers;
 
 import com.distelli.europa.EuropaRequestContext;
-import org.eclipse.jetty.http.HttpMethod;
-import com.distelli.webserver.RequestHandler;
+import com.distelli.europa.db.RegistryManifestDb;
+import com.distelli.europa.models.ContainerRepo;
+import com.distelli.europa.registry.RegistryError;
+import com.distelli.europa.registry.RegistryErrorCode;
+import com.distelli.europa.util.Tag;
 import com.distelli.webserver.WebResponse;
-import com.distelli.webserver.RequestContext;
-import com.fasterxml.jackson.databind.JsonNode;
-import javax.inject.Singleton;
-import java.util.Map;
-import java.util.HashMap;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import lombok.extern.log4j.Log4j;
 
 @Log4j
 @Singleton
 public class RegistryManifestDelete extends RegistryBase {
+    @Inject
+    private RegistryManifestDb _manifestDb;
+
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
-        WebResponse response = new WebResponse(200);
-        return response;
+        String ownerDomain = requestContext.getOwnerDomain();
+        String name = requestContext.getMatchedRoute().getParam("name");
+        String reference = requestContext.getMatchedRoute().getParam("reference");
+        ContainerRepo repo = getContainerRepo(ownerDomain, name);
+        if ( null == repo ) {
+            throw new RegistryError(
+                "No manifest exists with name="+name+" reference="+reference,
+                RegistryErrorCode.MANIFEST_UNKNOWN);
+        }
+
+        boolean found;
+        if ( Tag.isDigest(reference) ) {
+            // Deletes all the tags of the manifest, the blobs are deleted
+            // later by the CollectBlobsTask:
+            found = _manifestDb.deleteManifest(ownerDomain, repo.getId(), reference);
+        } else {
+            // Only deletes the tag, the manifest can still be pulled by digest:
+            found = null != _manifestDb.getManifestByRepoIdTag(ownerDomain, repo.getId(), reference);
+            _manifestDb.remove(ownerDomain, repo.getId(), reference);
+        }
+        if ( ! found ) {
+            throw new RegistryError(
+                "No manifest exists with name="+name+" reference="+reference,
+                RegistryErrorCode.MANIFEST_UNKNOWN);
+        }
+        return new WebResponse(202);
     }
 }
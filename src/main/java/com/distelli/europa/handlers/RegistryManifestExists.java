@@ -17,9 +17,9 @@ import java.io.IOException;
 import com.distelli.europa.db.RegistryManifestDb;
 import com.distelli.europa.models.ContainerRepo;
 import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.europa.util.VerifiedObjectCache;
 import com.distelli.objectStore.ObjectKey;
 import com.distelli.objectStore.ObjectStore;
-import com.distelli.objectStore.ObjectMetadata;
 import com.distelli.europa.models.RegistryManifest;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
@@ -34,6 +34,8 @@ public class RegistryManifestExists extends RegistryBase {
     private Provider<ObjectStore> _objectStoreProvider;
     @Inject
     private RegistryManifestDb _manifestDb;
+    @Inject
+    private VerifiedObjectCache _verifiedObjectCache;
 
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
         String ownerDomain = requestContext.getOwnerDomain();
@@ -57,8 +59,11 @@ public class RegistryManifestExists extends RegistryBase {
         ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
         ObjectKey objKey = objectKeyFactory.forRegistryManifest(manifest.getManifestId());
         ObjectStore objectStore = _objectStoreProvider.get();
-        ObjectMetadata objMeta = objectStore.head(objKey);
-        if ( null == objMeta ) {
+        // The size is recorded when the manifest is pushed, so only older
+        // manifests need to be checked against the object store:
+        Long manifestSize = manifest.getManifestSize();
+        if ( null == manifestSize ) manifestSize = _verifiedObjectCache.getContentLength(objectStore, objKey);
+        if ( null == manifestSize ) {
             throw new RegistryError(
                 "Manifest is missing from object store. "+objKey,
                 RegistryErrorCode.MANIFEST_UNKNOWN);
@@ -67,7 +72,7 @@ public class RegistryManifestExists extends RegistryBase {
         WebResponse response = new WebResponse(200);
 
         response.setContentType(manifest.getContentType());
-        response.setResponseHeader("Content-Length", ""+objMeta.getContentLength());
+        response.setResponseHeader("Content-Length", ""+manifestSize);
         response.setResponseHeader("Docker-Content-Digest", manifest.getManifestId());
         return response;
     }
@@ -14,12 +14,15 @@ import lombok.extern.log4j.Log4j;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.io.File;
 import com.distelli.europa.db.RegistryManifestDb;
 import com.distelli.europa.models.ContainerRepo;
+import com.distelli.europa.util.CompressionPolicy;
+import com.distelli.europa.util.ManifestCache;
 import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.europa.util.VerifiedObjectCache;
 import com.distelli.objectStore.ObjectKey;
 import com.distelli.objectStore.ObjectStore;
-import com.distelli.objectStore.ObjectMetadata;
 import com.distelli.europa.models.RegistryManifest;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
@@ -34,6 +37,10 @@ public class RegistryManifestPull extends RegistryBase {
     private Provider<ObjectStore> _objectStoreProvider;
     @Inject
     private RegistryManifestDb _manifestDb;
+    @Inject
+    private VerifiedObjectCache _verifiedObjectCache;
+    @Inject
+    private ManifestCache _manifestCache;
 
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
         String ownerDomain = requestContext.getOwnerDomain();
@@ -53,26 +60,68 @@ public class RegistryManifestPull extends RegistryBase {
                 RegistryErrorCode.MANIFEST_UNKNOWN);
         }
 
+        ManifestCache.Entry cached = _manifestCache.get(manifest.getManifestId());
+        if ( null != cached ) return toResponse(manifest, cached);
+
         ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
         ObjectKey objKey = objectKeyFactory.forRegistryManifest(manifest.getManifestId());
         ObjectStore objectStore = _objectStoreProvider.get();
-        ObjectMetadata objMeta = objectStore.head(objKey);
-        if ( null == objMeta ) {
+        // The size is recorded when the manifest is pushed, so only older
+        // manifests need to be checked against the object store:
+        Long manifestSize = manifest.getManifestSize();
+        if ( null == manifestSize ) manifestSize = _verifiedObjectCache.getContentLength(objectStore, objKey);
+        if ( null == manifestSize ) {
             throw new RegistryError(
                 "Manifest is missing from object store. "+objKey,
                 RegistryErrorCode.MANIFEST_UNKNOWN);
         }
 
+        if ( _manifestCache.isCacheable(manifestSize) ) {
+            byte[] content = objectStore.get(objKey);
+            if ( null == content ) {
+                _verifiedObjectCache.invalidate(objKey);
+                throw new RegistryError(
+                    "Manifest is missing from object store. "+objKey,
+                    RegistryErrorCode.MANIFEST_UNKNOWN);
+            }
+            return toResponse(
+                manifest,
+                _manifestCache.put(manifest.getManifestId(), manifest.getContentType(), content));
+        }
+
         WebResponse response = new WebResponse(200);
-        response.setResponseWriter(
-            (out) -> objectStore.get(objKey, (meta, in) -> {
-                    pump(in, out);
-                    return null;
-                }));
+        long size = manifestSize;
+        response.setResponseWriter((out) -> {
+                File file = verifyLocalFile(objectKeyFactory.toLocalFile(objKey), size);
+                if ( null != file ) {
+                    pump(file, 0, size, out);
+                    return;
+                }
+                ClientOutputStream clientOut = new ClientOutputStream(out);
+                try {
+                    objectStore.get(objKey, (meta, in) -> {
+                            pump(in, clientOut);
+                            return null;
+                        });
+                } catch ( IOException | RuntimeException ex ) {
+                    // A client that hung up says nothing about the object store:
+                    if ( ! clientOut.isFailed() ) _verifiedObjectCache.readFailed(objectStore, objKey);
+                    throw ex;
+                }
+            });
 
         response.setContentType(manifest.getContentType());
-        // NOTE: since we gzip the response, we shouldn't be doing this:
-        //response.setResponseHeader("Content-Length", ""+objMeta.getContentLength());
+        CompressionPolicy.apply(response, manifest.getContentType(), size);
+        response.setResponseHeader("Docker-Content-Digest", manifest.getManifestId());
+        return response;
+    }
+
+    private WebResponse toResponse(RegistryManifest manifest, ManifestCache.Entry cached) {
+        WebResponse response = new WebResponse(200);
+        byte[] content = cached.getContent();
+        response.setResponseWriter((out) -> out.write(content));
+        response.setContentType(cached.getContentType());
+        CompressionPolicy.apply(response, cached.getContentType(), cached.getContentLength());
         response.setResponseHeader("Docker-Content-Digest", manifest.getManifestId());
         return response;
     }
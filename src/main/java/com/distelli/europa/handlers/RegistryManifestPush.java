@@ -1,61 +1,29 @@
 package com.distelli.europa.handlers;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Arrays;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import org.eclipse.jetty.http.HttpMethod;
+import com.distelli.europa.EuropaConfiguration;
 import com.distelli.europa.EuropaRequestContext;
-import com.distelli.europa.db.ContainerRepoDb;
-import com.distelli.europa.db.PipelineDb;
-import com.distelli.europa.db.RegistryBlobDb;
 import com.distelli.europa.db.RegistryManifestDb;
-import com.distelli.europa.db.RepoEventsDb;
 import com.distelli.europa.models.ContainerRepo;
-import com.distelli.europa.models.DockerImage;
-import com.distelli.europa.models.Pipeline;
-import com.distelli.europa.models.PipelineComponent;
 import com.distelli.europa.models.RegistryManifest;
-import com.distelli.europa.models.RegistryProvider;
-import com.distelli.europa.models.RepoEvent;
-import com.distelli.europa.models.RepoEventType;
 import com.distelli.europa.models.UnknownDigests;
-import com.distelli.europa.pipeline.RunPipeline;
 import com.distelli.europa.registry.RegistryError;
 import com.distelli.europa.registry.RegistryErrorCode;
+import com.distelli.europa.util.ManifestCache;
+import com.distelli.europa.util.ManifestInfo;
 import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.europa.util.StorageQuota;
 import com.distelli.objectStore.ObjectKey;
 import com.distelli.objectStore.ObjectStore;
-import com.distelli.persistence.PageIterator;
-import com.distelli.utils.CompactUUID;
-import com.distelli.utils.CountingInputStream;
-import com.distelli.utils.ResettableInputStream;
-import com.distelli.utils.ResettableInputStream;
-import com.distelli.webserver.RequestContext;
-import com.distelli.webserver.RequestHandler;
 import com.distelli.webserver.WebResponse;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.module.mrbean.MrBeanModule;
-import com.google.inject.Injector;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
 import lombok.extern.log4j.Log4j;
 import static javax.xml.bind.DatatypeConverter.printHexBinary;
@@ -63,18 +31,6 @@ import static javax.xml.bind.DatatypeConverter.printHexBinary;
 @Log4j
 @Singleton
 public class RegistryManifestPush extends RegistryBase {
-    private static ObjectMapper OM = new ObjectMapper();
-
-    static {
-        // Support deserializing interfaces:
-        OM.registerModule(new MrBeanModule());
-        OM.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-        OM.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-        OM.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        OM.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
-        OM.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
-    }
-
     @Inject
     private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
     @Inject
@@ -82,15 +38,11 @@ public class RegistryManifestPush extends RegistryBase {
     @Inject
     private RegistryManifestDb _manifestDb;
     @Inject
-    private RegistryBlobDb _blobDb;
-    @Inject
-    private RepoEventsDb _eventDb;
-    @Inject
-    private ContainerRepoDb _repoDb;
+    private ManifestCache _manifestCache;
     @Inject
-    private PipelineDb _pipelineDb;
+    private EuropaConfiguration _europaConfiguration;
     @Inject
-    private RunPipeline _runPipeline;
+    private StorageQuota _storageQuota;
 
     public WebResponse handleRegistryRequest(EuropaRequestContext requestContext) {
         try {
@@ -108,26 +60,28 @@ public class RegistryManifestPush extends RegistryBase {
         // TODO: Validate name and reference.
 
         ContainerRepo repo = getOrCreateContainerRepo(ownerDomain, name);
+        if ( _storageQuota.isEnabled() ) _storageQuota.check(repo.getDomain(), repo, 0);
 
-        InputStream is = new ResettableInputStream(requestContext.getRequestStream());
-        CountingInputStream counter = new CountingInputStream(is);
+        // Manifests are small, so buffer the body once and use the same bytes
+        // for the digest, parsing and storage:
+        byte[] content = readManifest(requestContext);
+        String finalDigest = "sha256:" +
+            printHexBinary(MessageDigest.getInstance("SHA-256").digest(content)).toLowerCase();
 
-        // Find the stream size and checksum, validate the layers exist:
-        MessageDigest digestCalc = MessageDigest.getInstance("SHA-256");
-        DigestInputStream digestStream = new DigestInputStream(counter, digestCalc);
-
-        JsonNode manifestJson = OM.readTree(digestStream);
-        Set<String> digests = getDigests(manifestJson);
-
-        long contentLength = counter.getCount();
-        is.reset();
-        String finalDigest = "sha256:" + printHexBinary(digestCalc.digest()).toLowerCase();
+        ManifestInfo manifestInfo;
+        try {
+            manifestInfo = ManifestInfo.parse(content, 0, content.length);
+        } catch ( JsonProcessingException ex ) {
+            throw new RegistryError("Invalid manifest JSON: "+ex.getOriginalMessage(),
+                                    RegistryErrorCode.MANIFEST_INVALID);
+        }
+        long contentLength = content.length;
 
         ObjectKeyFactory objectKeyFactory = _objectKeyFactoryProvider.get();
         ObjectKey objKey = objectKeyFactory.forRegistryManifest(finalDigest);
         ObjectStore objectStore = _objectStoreProvider.get();
         if ( null == objectStore.head(objKey) ) {
-            objectStore.put(objKey, contentLength, is);
+            objectStore.put(objKey, contentLength, new ByteArrayInputStream(content));
         } else {
             objKey = null;
         }
@@ -137,22 +91,21 @@ public class RegistryManifestPush extends RegistryBase {
         long pushTime = System.currentTimeMillis();
         RegistryManifest manifest = RegistryManifest.builder()
             .uploadedBy(requestContext.getRequesterDomain())
-            .contentType(getContentType(manifestJson, requestContext.getContentType()))
+            .contentType(getContentType(manifestInfo, requestContext.getContentType()))
             .manifestId(finalDigest)
             .domain(repo.getDomain())
             .containerRepoId(repo.getId())
             .tag(reference)
-            .digests(digests)
+            .digests(manifestInfo.getDigests())
             .pushTime(pushTime)
+            .manifestSize(contentLength)
             .build();
 
         try {
-            // Always write a reference to support pulling via @sha256:...
-            _manifestDb.put(manifest.toBuilder()
-                            .tag(finalDigest)
-                            .build());
+            // put() also writes the reference which supports pulling via @sha256:...
             oldManifest = _manifestDb.put(manifest);
             success = true;
+            _manifestCache.put(finalDigest, manifest.getContentType(), content);
         } catch ( UnknownDigests ex ) {
             // TODO: make this be a list of digests...
             throw new RegistryError("Invalid digest(s), are unknown"+ex.getDigests(),
@@ -171,35 +124,37 @@ public class RegistryManifestPush extends RegistryBase {
         return response;
     }
 
-    private String getImageId(JsonNode manifest) {
-        // schemaVersion=2
-        JsonNode digest = manifest.at("/config/digest");
-        if ( digest.isTextual() ) return digest.asText();
-        return null;
+    private byte[] readManifest(EuropaRequestContext requestContext) throws Exception {
+        long maxBytes = _europaConfiguration.getManifestMaxBytes();
+        long declaredLength = requestContext.getContentLength();
+        if ( declaredLength > maxBytes ) throw manifestTooLarge(maxBytes);
+        // One byte past the expected length, so EOF is seen without growing:
+        byte[] content = new byte[(int)(declaredLength >= 0 ? declaredLength + 1 : Math.min(maxBytes + 1, 8192))];
+        int length = 0;
+        InputStream is = requestContext.getRequestStream();
+        while ( true ) {
+            if ( length == content.length ) {
+                // Read at most one byte past the limit to detect overflow:
+                if ( length > maxBytes ) throw manifestTooLarge(maxBytes);
+                content = Arrays.copyOf(content, (int)Math.min(maxBytes + 1, length + Math.max(length, 8192L)));
+            }
+            int read = is.read(content, length, content.length - length);
+            if ( read < 0 ) break;
+            length += read;
+        }
+        if ( length > maxBytes ) throw manifestTooLarge(maxBytes);
+        return ( length == content.length ) ? content : Arrays.copyOf(content, length);
     }
 
-    private String getContentType(JsonNode manifest, String contentType) {
-        if ( null != contentType ) return contentType;
-        JsonNode node = manifest.at("/mediaType");
-        if ( node.isTextual() ) return node.asText();
-        return "application/vnd.docker.distribution.manifest.v1+json";
+    private RegistryError manifestTooLarge(long maxBytes) {
+        return new RegistryError("Manifest exceeds the maximum size of "+maxBytes+" bytes",
+                                 RegistryErrorCode.MANIFEST_INVALID,
+                                 413);
     }
 
-    private Set<String> getDigests(JsonNode manifest) {
-        Set<String> digests = new TreeSet<>();
-        if ( manifest.at("/layers").isArray() ) {
-            JsonNode node = manifest.at("/config/digest");
-            if ( node.isTextual() ) {
-                digests.add(node.asText());
-            }
-            for ( JsonNode layer : manifest.at("/layers") ) {
-                digests.add(layer.at("/digest").asText());
-            }
-        } else if ( manifest.at("/fsLayers").isArray() ) {
-            for ( JsonNode layer : manifest.at("/fsLayers") ) {
-                digests.add(layer.at("/blobSum").asText());
-            }
-        }
-        return digests;
+    private String getContentType(ManifestInfo manifestInfo, String contentType) {
+        if ( null != contentType ) return contentType;
+        if ( null != manifestInfo.getMediaType() ) return manifestInfo.getMediaType();
+        return "application/vnd.docker.distribution.manifest.v1+json";
     }
 }
@@ -82,7 +82,7 @@ public class RegistryTokenHandler extends RegistryBase
 
         ContainerRepo repo = getContainerRepo(ownerDomain, repoName);
         //if its a public repo then return the PUBLIC TOKEN
-        if(repo != null && repo.isPublicRepo())
+        if(_repoDb.isPublicRepo(repo))
             return WebResponse.toJson(RegistryToken.PUBLIC_TOKEN);
         if(log.isDebugEnabled())
             log.debug("Disallowing Repo public Access to repo: "+repoName);
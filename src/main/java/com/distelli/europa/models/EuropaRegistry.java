@@ -4,6 +4,9 @@ import com.distelli.europa.db.RegistryBlobDb;
 import com.distelli.europa.db.RegistryManifestDb;
 import com.distelli.europa.guice.ObjectKeyFactoryProvider;
 import com.distelli.europa.guice.ObjectStoreProvider;
+import com.distelli.europa.util.BlobCache;
+import com.distelli.europa.util.BufferPool;
+import com.distelli.europa.util.ManifestCache;
 import com.distelli.gcr.models.GcrBlobMeta;
 import com.distelli.gcr.models.GcrBlobReader;
 import com.distelli.gcr.models.GcrBlobUpload;
@@ -40,6 +43,12 @@ public class EuropaRegistry implements Registry {
     private ObjectStoreProvider _objectStoreProvider;
     @Inject
     private RegistryBlobDb _blobDb;
+    @Inject
+    private BlobCache _blobCache;
+    @Inject
+    private BufferPool _bufferPool;
+    @Inject
+    private ManifestCache _manifestCache;
 
     private ContainerRepo repo;
 
@@ -59,11 +68,18 @@ public class EuropaRegistry implements Registry {
         if (null == manifest) {
             return null;
         }
-        ObjectKey key = _objectKeyFactoryProvider.get()
-            .forRegistryManifest(manifest.getManifestId());
-        byte[] binary = _objectStoreProvider.get().get(key);
-        if (null == binary) {
-            return null;
+        byte[] binary;
+        ManifestCache.Entry cached = _manifestCache.get(manifest.getManifestId());
+        if (null != cached) {
+            binary = cached.getContent();
+        } else {
+            ObjectKey key = _objectKeyFactoryProvider.get()
+                .forRegistryManifest(manifest.getManifestId());
+            binary = _objectStoreProvider.get().get(key);
+            if (null == binary) {
+                return null;
+            }
+            _manifestCache.put(manifest.getManifestId(), manifest.getContentType(), binary);
         }
         String manifestContent = new String(binary, UTF_8);
         return new GcrManifest() {
@@ -89,12 +105,20 @@ public class EuropaRegistry implements Registry {
         }
         ObjectKey key = _objectKeyFactoryProvider.get()
             .forRegistryBlobId(blob.getBlobId());
-        return _objectStoreProvider.get()
-            .get(key, (meta, in) -> reader.read(in,
-                                                GcrBlobMeta.builder()
-                                                    .digest(digest)
-                                                    .length(meta.getContentLength())
-                                                    .build()));
+        if (null == blob.getSize()) {
+            return _objectStoreProvider.get()
+                .get(key, (meta, in) -> reader.read(in,
+                                                    GcrBlobMeta.builder()
+                                                        .digest(digest)
+                                                        .length(meta.getContentLength())
+                                                        .build()));
+        }
+        return _blobCache.get(_objectStoreProvider.get(), key, digest, blob.getSize(),
+                              (in) -> reader.read(in,
+                                                  GcrBlobMeta.builder()
+                                                      .digest(digest)
+                                                      .length(blob.getSize())
+                                                      .build()));
     }
 
     @Override
@@ -117,9 +141,13 @@ public class EuropaRegistry implements Registry {
             // Buffer on disk to determine object size:
             chunk = new ResettableInputStream(chunk);
             CountingInputStream counter = new CountingInputStream(chunk);
-            byte[] buff = new byte[1024 * 1024];
-            while (counter.read(buff) > 0) {
-                ;
+            byte[] buff = _bufferPool.acquire();
+            try {
+                while (counter.read(buff) > 0) {
+                    ;
+                }
+            } finally {
+                _bufferPool.release(buff);
             }
             chunkLength = counter.getCount();
             chunk.reset();
@@ -177,6 +205,7 @@ public class EuropaRegistry implements Registry {
             .tag(reference)
             .digests(gcrManifest.getReferencedDigests())
             .pushTime(System.currentTimeMillis())
+            .manifestSize((long)binary.length)
             .build();
         _manifestDb.put(manifest);
         // TODO: Should we trigger other pipelines? .. perhaps we should move pipeline triggers
@@ -13,5 +13,7 @@ public enum EuropaSettingType
     STORAGE,
     SSL,
     SAML,
-    SKEY;
+    SKEY,
+    // Positions of resumable background scans:
+    SCAN;
 }
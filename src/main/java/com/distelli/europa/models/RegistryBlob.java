@@ -10,7 +10,7 @@ import lombok.Singular;
 import lombok.ToString;
 
 @Data
-@Builder
+@Builder(toBuilder=true)
 @NoArgsConstructor
 @AllArgsConstructor
 @ToString
@@ -25,8 +25,9 @@ public class RegistryBlob
     /* Domain of uploader. (book-keeping)
      */
     private String uploadedBy;
-    /* If upload is in progress, this is an array of parts
-     * that have been uploaded.
+    /* Legacy uploads only: if upload is in progress, this is
+     * an array of parts that have been uploaded. Parts are now
+     * recorded in the part log (see RegistryBlobDb.getParts()).
      */
     @Singular
     private List<RegistryBlobPart> partIds;
@@ -36,10 +37,23 @@ public class RegistryBlob
     /* Message digest encoded state.
      */
     private byte[] mdEncodedState;
-    /* A list of manifest ids which reference this blob
-     * (so we can implement GC).
+    /* If upload is in progress, the number of parts uploaded.
+     */
+    private Integer partCount;
+    /* If upload is in progress, the total size of the parts uploaded.
+     */
+    private Long partsSize;
+    /* If upload is in progress, the last part number reserved by
+     * RegistryBlobDb.reservePartNums(), part numbers are never reused.
+     */
+    private Integer nextPartNum;
+    /* If upload is in progress, the size of the last part uploaded.
+     */
+    private Long lastPartSize;
+    /* The references to this blob, one per manifest per repo
+     * (see RegistryManifestDb), null if unreferenced. Only
+     * maintained by RegistryBlobDb.addReference()/removeReference().
      */
-    @Singular
     private Set<String> manifestIds;
     /* The size of the blob uploaded.
      */
@@ -47,4 +61,19 @@ public class RegistryBlob
     /* The Content-Type set when it was uploaded.
      */
     private String mediaType;
+    /* When the upload was started, System.currentTimeMillis().
+     */
+    private Long startTime;
+    /* If upload is in progress, when the last part was recorded.
+     */
+    private Long lastPartTime;
+    /* The number of uploads of this same content which were
+     * deduplicated into this blob.
+     */
+    private Long reuseCount;
+    /* When the last reference to this finished blob was removed,
+     * null if it is referenced. Unreferenced blobs are deleted
+     * by CollectBlobsTask after a grace period.
+     */
+    private Long unreferencedTime;
 }
@@ -15,6 +15,9 @@ import lombok.ToString;
 @ToString
 public class RegistryBlobPart
 {
+    /* Primary key (part 1) of the part log.
+     */
+    private String blobId;
     private Long chunkSize;
     private Integer partNum;
     private String partId;
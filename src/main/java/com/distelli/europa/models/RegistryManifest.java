@@ -43,4 +43,13 @@ public class RegistryManifest
      * When this manifest was pushed. Might not be available.
      */
     private Long pushTime;
+    /**
+     * The size in bytes of the manifest content. Might not be available.
+     */
+    private Long manifestSize;
+    /**
+     * Only set on the manifestId-as-tag entry, true if the manifest is
+     * counted in the storage usage of the repo (see StorageUsageDb).
+     */
+    private Boolean storageCounted;
 }
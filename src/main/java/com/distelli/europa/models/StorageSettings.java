@@ -33,6 +33,8 @@ public class StorageSettings
     public static final String SETTING_OS_CRED_SECRET = "osCredSecret";
     public static final String SETTING_OS_DISK_STORAGE_ROOT = "osDiskRoot";
     public static final String SETTING_OS_PATH_PREFIX = "osPathPrefix";
+    public static final String SETTING_OS_REGION = "osRegion";
+    public static final String SETTING_OS_REDIRECT_MIN_SIZE = "osRedirectMinSize";
 
     protected ObjectStoreType osType;
     protected String osEndpoint;
@@ -41,6 +43,11 @@ public class StorageSettings
     protected String osBucket;
     protected String osDiskRoot;
     protected String osPathPrefix;
+    // S3 region used for signing, defaults to us-east-1:
+    protected String osRegion;
+    // When set (S3 only), blob pulls of at least this many bytes are
+    // redirected to a presigned object store URL:
+    protected Long osRedirectMinSize;
 
     private static final String DEFAULT_DISK_BUCKET = "default";
 
@@ -76,6 +83,16 @@ public class StorageSettings
                 storageSettings.setOsDiskRoot(setting.getValue());
             else if(key.equalsIgnoreCase(StorageSettings.SETTING_OS_PATH_PREFIX))
                 storageSettings.setOsPathPrefix(setting.getValue());
+            else if(key.equalsIgnoreCase(StorageSettings.SETTING_OS_REGION))
+                storageSettings.setOsRegion(setting.getValue());
+            else if(key.equalsIgnoreCase(StorageSettings.SETTING_OS_REDIRECT_MIN_SIZE))
+            {
+                try {
+                    storageSettings.setOsRedirectMinSize(Long.parseLong(setting.getValue()));
+                } catch(Throwable t) {
+                    throw(new RuntimeException("Illegal value for EuropaSetting key: "+key+". Expected a number"));
+                }
+            }
         }
 
         if(storageSettings.getOsType() == ObjectStoreType.DISK && storageSettings.getOsBucket() == null)
@@ -99,6 +116,8 @@ public class StorageSettings
                 throw(new AjaxClientException("Invalid or Missing field: osCredKey in content"));
             if(this.osCredSecret == null || this.osCredSecret.trim().isEmpty())
                 throw(new AjaxClientException("Invalid or Missing field: osCredSecret in content"));
+            if(this.osRedirectMinSize != null && this.osRedirectMinSize < 0)
+                throw(new AjaxClientException("Invalid field: osRedirectMinSize in content"));
             break;
         case DISK:
             if(this.osDiskRoot == null || this.osDiskRoot.trim().isEmpty())
@@ -121,6 +140,10 @@ public class StorageSettings
             settingsList.add(toSetting(SETTING_OS_ENDPOINT, this.osEndpoint));
             settingsList.add(toSetting(SETTING_OS_CRED_KEY, this.osCredKey));
             settingsList.add(toSetting(SETTING_OS_CRED_SECRET, this.osCredSecret));
+            if(this.osRegion != null && !this.osRegion.trim().isEmpty())
+                settingsList.add(toSetting(SETTING_OS_REGION, this.osRegion));
+            if(this.osRedirectMinSize != null)
+                settingsList.add(toSetting(SETTING_OS_REDIRECT_MIN_SIZE, this.osRedirectMinSize.toString()));
             break;
         case DISK:
             settingsList.add(toSetting(SETTING_OS_DISK_STORAGE_ROOT, this.osDiskRoot));
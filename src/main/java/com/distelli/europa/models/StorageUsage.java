@@ -0,0 +1,34 @@
+package com.distelli.europa.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StorageUsage
+{
+    /* Primary key (part 1).
+     */
+    private String domain;
+    /* Primary key (part 2), null for the totals of the domain.
+     */
+    private String repoId;
+    /* The number of manifests (not tags).
+     */
+    private long manifestCount;
+    /* The size of the blobs referenced only by this repo (or domain).
+     */
+    private long uniqueBytes;
+    /* The size of the blobs also referenced by other repos (or domains).
+     */
+    private long sharedBytes;
+
+    public long getTotalBytes()
+    {
+        return uniqueBytes + sharedBytes;
+    }
+}
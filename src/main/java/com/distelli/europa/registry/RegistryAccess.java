@@ -102,7 +102,7 @@ public interface RegistryAccess
                 ContainerRepo repo = _repoDb.getLocalRepo(ownerDomain,
                                                           repoName);
                 //if its a public repo then allow acess
-                if(repo != null && repo.isPublicRepo())
+                if(_repoDb.isPublicRepo(repo))
                     return;
             }
 
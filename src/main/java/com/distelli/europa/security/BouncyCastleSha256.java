@@ -0,0 +1,50 @@
+package com.distelli.europa.security;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+/**
+ * Pure java SHA-256 engine, used when the JDK engine is not available.
+ */
+public class BouncyCastleSha256 extends ResumableSha256
+{
+    private final SHA256Digest _digest;
+
+    public BouncyCastleSha256(byte[] encodedState)
+    {
+        _digest = ( null == encodedState )
+            ? new SHA256Digest()
+            : new SHA256Digest(encodedState);
+    }
+
+    @Override
+    public byte[] getEncodedState()
+    {
+        return _digest.getEncodedState();
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        _digest.reset();
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        _digest.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len)
+    {
+        _digest.update(input, offset, len);
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        byte[] digestBytes = new byte[_digest.getDigestSize()];
+        _digest.doFinal(digestBytes, 0);
+        return digestBytes;
+    }
+}
@@ -0,0 +1,179 @@
+package com.distelli.europa.security;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.MessageDigestSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * SHA-256 engine backed by the JDK's SUN provider, which the JIT replaces
+ * with SHA instructions on CPUs which have them.
+ *
+ * The SUN provider has no API for exporting the state, so the state is
+ * read and written through reflection (sun.security.provider.DigestBase
+ * and SHA2), and translated from/to the SHA256Digest encoded state:
+ *
+ *   [0-3]   partial word (xBuf)          [4-7]   xBufOff
+ *   [8-15]  total byte count             [16-47] H1..H8
+ *   [48-51] number of whole words (xOff) [52-]   whole words (X)
+ *
+ * All integers are big endian. Whole words and the partial word together
+ * are the bytes buffered by DigestBase.
+ */
+@Log4j
+public class JdkSha256 extends ResumableSha256
+{
+    private static final int BLOCK_SIZE = 64;
+    private static final int HEADER_SIZE = 52;
+
+    private static final Field DIGEST_SPI = findField("java.security.MessageDigest$Delegate", "digestSpi");
+    private static final Field BUFFER = findField("sun.security.provider.DigestBase", "buffer");
+    private static final Field BUF_OFS = findField("sun.security.provider.DigestBase", "bufOfs");
+    private static final Field BYTES_PROCESSED = findField("sun.security.provider.DigestBase", "bytesProcessed");
+    private static final Field STATE = findField("sun.security.provider.SHA2", "state");
+
+    private final MessageDigest _digest;
+    private final MessageDigestSpi _spi;
+
+    public JdkSha256(byte[] encodedState)
+    {
+        _digest = newSunSha256();
+        try {
+            _spi = (MessageDigestSpi)DIGEST_SPI.get(_digest);
+            if ( null != encodedState ) setEncodedState(encodedState);
+        } catch ( IllegalAccessException ex ) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return true if the SUN provider internals are accessible and
+     *     produce the same states as SHA256Digest.
+     */
+    public static boolean isAvailable()
+    {
+        if ( null == DIGEST_SPI || null == BUFFER || null == BUF_OFS ||
+             null == BYTES_PROCESSED || null == STATE )
+        {
+            return false;
+        }
+        try {
+            // Make sure the internals are what we expect, by resuming
+            // states in both directions:
+            byte[] input = new byte[BLOCK_SIZE + 7];
+            for ( int i=0; i < input.length; i++ ) input[i] = (byte)i;
+            BouncyCastleSha256 bc = new BouncyCastleSha256(null);
+            JdkSha256 jdk = new JdkSha256(null);
+            bc.update(input);
+            jdk.update(input);
+            ResumableSha256 fromBc = new JdkSha256(bc.getEncodedState());
+            ResumableSha256 fromJdk = new BouncyCastleSha256(jdk.getEncodedState());
+            fromBc.update(input);
+            fromJdk.update(input);
+            bc.update(input);
+            byte[] expect = bc.digest();
+            return MessageDigest.isEqual(expect, fromBc.digest()) &&
+                MessageDigest.isEqual(expect, fromJdk.digest());
+        } catch ( Throwable ex ) {
+            log.debug(ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    @Override
+    public byte[] getEncodedState()
+    {
+        try {
+            byte[] buffer = (byte[])BUFFER.get(_spi);
+            int bufOfs = BUF_OFS.getInt(_spi);
+            int[] state = (int[])STATE.get(_spi);
+            int xOff = bufOfs / 4;
+            int xBufOff = bufOfs % 4;
+            ByteBuffer encoded = ByteBuffer.allocate(HEADER_SIZE + 4*xOff);
+            encoded.put(buffer, 4*xOff, xBufOff);
+            encoded.position(4);
+            encoded.putInt(xBufOff);
+            encoded.putLong(BYTES_PROCESSED.getLong(_spi));
+            for ( int i=0; i < 8; i++ ) {
+                encoded.putInt(state[i]);
+            }
+            encoded.putInt(xOff);
+            encoded.put(buffer, 0, 4*xOff);
+            return encoded.array();
+        } catch ( IllegalAccessException ex ) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void setEncodedState(byte[] encodedState) throws IllegalAccessException
+    {
+        ByteBuffer encoded = ByteBuffer.wrap(encodedState);
+        int xBufOff = encoded.getInt(4);
+        long byteCount = encoded.getLong(8);
+        int xOff = encoded.getInt(48);
+        if ( xBufOff < 0 || xBufOff > 3 || xOff < 0 || xOff > 15 ||
+             encodedState.length < HEADER_SIZE + 4*xOff )
+        {
+            throw new IllegalArgumentException("Invalid SHA-256 encoded state");
+        }
+        byte[] buffer = (byte[])BUFFER.get(_spi);
+        int[] state = (int[])STATE.get(_spi);
+        encoded.position(16);
+        for ( int i=0; i < 8; i++ ) {
+            state[i] = encoded.getInt();
+        }
+        encoded.position(HEADER_SIZE);
+        encoded.get(buffer, 0, 4*xOff);
+        System.arraycopy(encodedState, 0, buffer, 4*xOff, xBufOff);
+        BUF_OFS.setInt(_spi, 4*xOff + xBufOff);
+        BYTES_PROCESSED.setLong(_spi, byteCount);
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        _digest.reset();
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        _digest.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len)
+    {
+        _digest.update(input, offset, len);
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        return _digest.digest();
+    }
+
+    private static MessageDigest newSunSha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256", "SUN");
+        } catch ( NoSuchAlgorithmException | NoSuchProviderException ex ) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Field findField(String className, String fieldName)
+    {
+        try {
+            Field field = Class.forName(className).getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field;
+        } catch ( Throwable ex ) {
+            // Java 9+ without --add-opens java.base/...=ALL-UNNAMED
+            return null;
+        }
+    }
+}
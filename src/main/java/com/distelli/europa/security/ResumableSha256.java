@@ -0,0 +1,46 @@
+package com.distelli.europa.security;
+
+import java.security.MessageDigest;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * A SHA-256 MessageDigest whose intermediate state can be exported and
+ * imported, so a digest can be resumed by a later request (possibly on a
+ * different node).
+ *
+ * The encoded state is always in the format of BouncyCastle's
+ * SHA256Digest.getEncodedState(), so states persisted by any engine (or
+ * before engines were pluggable) can be resumed by any other engine.
+ */
+@Log4j
+public abstract class ResumableSha256 extends MessageDigest
+{
+    private static final boolean JDK_AVAILABLE = JdkSha256.isAvailable();
+    static {
+        if ( ! JDK_AVAILABLE ) {
+            log.info("JDK SHA-256 state is not accessible, using BouncyCastle SHA-256 for uploads");
+        }
+    }
+
+    protected ResumableSha256()
+    {
+        super("SHA-256");
+    }
+
+    /**
+     * @param encodedState is the state to resume from, or null to start a
+     *     new digest.
+     *
+     * @return the fastest available engine.
+     */
+    public static ResumableSha256 newInstance(byte[] encodedState)
+    {
+        if ( JDK_AVAILABLE ) return new JdkSha256(encodedState);
+        return new BouncyCastleSha256(encodedState);
+    }
+
+    /**
+     * @return the current state in SHA256Digest.getEncodedState() format.
+     */
+    public abstract byte[] getEncodedState();
+}
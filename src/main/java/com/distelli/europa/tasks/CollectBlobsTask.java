@@ -0,0 +1,186 @@
+package com.distelli.europa.tasks;
+
+import com.distelli.europa.db.RegistryBlobDb;
+import com.distelli.europa.db.RegistryManifestDb;
+import com.distelli.europa.db.SettingsDb;
+import com.distelli.europa.models.RawTaskEntry;
+import com.distelli.europa.models.RegistryBlob;
+import com.distelli.europa.models.RegistryManifest;
+import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.objectStore.ObjectKey;
+import com.distelli.objectStore.ObjectStore;
+import com.distelli.persistence.PageIterator;
+import com.google.inject.Injector;
+import java.util.Collections;
+import java.util.List;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Garbage collects blobs no manifest references.
+ *
+ * References: blob references used to be recorded as a bare manifestId,
+ * which was removed when any tag moved, so blobs of older manifests may
+ * have no references. Before anything is collected, a one time scan of
+ * the manifests records the references of those written before the
+ * per repo format (see RegistryManifestDb.addLegacyReferences()). The
+ * references in the old format are kept, so blobs which have them are
+ * never collected.
+ *
+ * Sweep: blobs which have been unreferenced for longer than the grace
+ * period are deleted, the record first (conditionally on still being
+ * unreferenced, so a concurrent push wins) then the object.
+ *
+ * Mark: blobs are marked as unreferenced when they are uploaded and when
+ * their last reference is removed, so a one time scan finds the blobs
+ * which were never marked (uploaded before the mark was recorded).
+ *
+ * Both scans save their position, so they resume where they stopped.
+ */
+@Log4j
+@Data
+@NoArgsConstructor
+public class CollectBlobsTask implements Task {
+    public static final String ENTITY_TYPE = "gc:blobs";
+    // Time for a manifest to reference a blob after it is uploaded:
+    public static final long GRACE_PERIOD_MS = 24 * 60 * 60 * 1000;
+    private static final int BATCH_SIZE = 50;
+    private static final int SCAN_BATCH_SIZE = 100;
+    public static final String REFERENCES_SCAN = "gc:blobs:references";
+    private static final String MARK_SCAN = "gc:blobs:mark";
+    private static final long BATCH_DELAY_MS = 1000;
+    // The rest are deleted by the next run:
+    private static final int MAX_DELETED_PER_RUN = 5000;
+
+    @Override
+    public RawTaskEntry toRawTaskEntry() {
+        return RawTaskEntry.builder()
+            .entityType(ENTITY_TYPE)
+            .entityId("rblob")
+            // Only one collector runs at a time:
+            .lockIds(Collections.singleton(ENTITY_TYPE))
+            .build();
+    }
+
+    /**
+     * @return true if the blob has been unreferenced for longer than the
+     *     grace period at the time now, so it may be deleted.
+     */
+    public static boolean isPastGracePeriod(RegistryBlob blob, long now) {
+        Long unreferencedTime = blob.getUnreferencedTime();
+        return null != unreferencedTime && unreferencedTime < now - GRACE_PERIOD_MS;
+    }
+
+    public class Run implements Runnable {
+        @Inject
+        private RegistryBlobDb _blobDb;
+        @Inject
+        private RegistryManifestDb _manifestDb;
+        @Inject
+        private SettingsDb _settingsDb;
+        @Inject
+        private Provider<ObjectStore> _objectStoreProvider;
+        @Inject
+        private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
+
+        @Override
+        public void run() {
+            // Until every manifest has its references recorded, a blob
+            // without references may still be in use:
+            if ( ! addLegacyReferences() ) return;
+            if ( sweep() ) mark();
+        }
+
+        // Returns false if interrupted.
+        private boolean addLegacyReferences() {
+            String marker = _settingsDb.getScanMarker(REFERENCES_SCAN);
+            if ( SettingsDb.SCAN_DONE.equals(marker) ) return true;
+            int added = 0;
+            for ( PageIterator iter : new PageIterator().pageSize(SCAN_BATCH_SIZE).marker(marker) ) {
+                for ( RegistryManifest manifest : _manifestDb.listAllManifests(iter) ) {
+                    if ( _manifestDb.addLegacyReferences(manifest) ) added++;
+                }
+                _settingsDb.saveScanMarker(REFERENCES_SCAN, iter.getMarker());
+                if ( ! pause() ) return false;
+            }
+            if ( added > 0 ) log.info("Recorded the blob references of "+added+" manifests");
+            return true;
+        }
+
+        // Returns false if interrupted.
+        private boolean sweep() {
+            long now = System.currentTimeMillis();
+            int deleted = 0;
+            // Unreferenced blobs are ordered by unreferenced time, so stop at
+            // the first blob which is still in its grace period:
+            for ( PageIterator iter : new PageIterator().pageSize(BATCH_SIZE) ) {
+                List<RegistryBlob> blobs = _blobDb.listUnreferencedBlobs(iter);
+                for ( RegistryBlob blob : blobs ) {
+                    if ( ! isPastGracePeriod(blob, now) ) return true;
+                    if ( delete(blob) && ++deleted >= MAX_DELETED_PER_RUN ) return true;
+                }
+                if ( blobs.isEmpty() ) return true;
+                if ( ! pause() ) return false;
+            }
+            return true;
+        }
+
+        private void mark() {
+            String marker = _settingsDb.getScanMarker(MARK_SCAN);
+            if ( SettingsDb.SCAN_DONE.equals(marker) ) return;
+            int marked = 0;
+            for ( PageIterator iter : new PageIterator().pageSize(SCAN_BATCH_SIZE).marker(marker) ) {
+                for ( RegistryBlob blob : _blobDb.listBlobs(iter) ) {
+                    if ( null == blob.getDigest() || null != blob.getUnreferencedTime() ) continue;
+                    if ( null != blob.getManifestIds() && ! blob.getManifestIds().isEmpty() ) continue;
+                    if ( _blobDb.markUnreferenced(blob.getBlobId()) ) marked++;
+                }
+                _settingsDb.saveScanMarker(MARK_SCAN, iter.getMarker());
+                if ( ! pause() ) break;
+            }
+            if ( marked > 0 ) log.info("Marked "+marked+" blobs as unreferenced");
+        }
+
+        private boolean delete(RegistryBlob blob) {
+            String blobId = blob.getBlobId();
+            if ( ! _blobDb.deleteUnreferencedBlob(blobId, blob.getUnreferencedTime()) ) {
+                // Referenced again since it was listed.
+                return false;
+            }
+            log.info("Deleting unreferenced blobId="+blobId+" digest="+blob.getDigest()+
+                     " unreferenced since "+blob.getUnreferencedTime());
+            ObjectKey objKey = _objectKeyFactoryProvider.get().forRegistryBlobId(blobId);
+            try {
+                _objectStoreProvider.get().delete(objKey);
+            } catch ( RuntimeException ex ) {
+                // The record is gone, so the object is no longer reachable:
+                log.error("Unable to delete object of blobId="+blobId+": "+ex.getMessage(), ex);
+            }
+            return true;
+        }
+
+        private boolean pause() {
+            try {
+                Thread.sleep(BATCH_DELAY_MS);
+                return true;
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    public static class Factory implements TaskFactory {
+        @Inject
+        private Injector _injector;
+        @Override
+        public Runnable toRunnable(RawTaskEntry entry) {
+            Run run = new CollectBlobsTask().new Run();
+            _injector.injectMembers(run);
+            return run;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.distelli.europa.tasks;
+
+import com.distelli.europa.db.TasksDb;
+import com.distelli.europa.models.Monitor;
+import com.distelli.europa.models.StorageSettings;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Periodically adds a ReapUploadsTask. Every node does this, but the task
+ * lock makes sure only one reaper runs at a time and a reaper which runs
+ * right after another finds nothing to do.
+ */
+@Singleton @Log4j
+public class DispatchReapUploadsTask implements Runnable {
+    public static long TIME_INTERVAL_MS = 60 * 60 * 1000;
+    @Inject
+    private TasksDb _tasksDb;
+    @Inject
+    private Provider<Monitor> _monitorProvider;
+    @Inject
+    private Provider<StorageSettings> _storageSettingsProvider;
+    @Inject
+    protected ScheduledExecutorService _scheduledExecutorService;
+
+    public synchronized void schedule() {
+        _scheduledExecutorService.scheduleAtFixedRate(
+            this,
+            ThreadLocalRandom.current().nextLong(TIME_INTERVAL_MS),
+            TIME_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if ( null == _storageSettingsProvider.get() ) {
+                if ( log.isDebugEnabled() )
+                    log.debug("Skipping ReapUploadsTask. Storage Not Initialized");
+                return;
+            }
+            _tasksDb.addTask(_monitorProvider.get(), new ReapUploadsTask());
+        } catch ( Throwable ex ) {
+            log.error(ex.getMessage(), ex);
+        }
+    }
+}
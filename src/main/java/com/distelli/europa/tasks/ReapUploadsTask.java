@@ -0,0 +1,146 @@
+package com.distelli.europa.tasks;
+
+import com.distelli.europa.db.RegistryBlobDb;
+import com.distelli.europa.db.SettingsDb;
+import com.distelli.europa.models.RawTaskEntry;
+import com.distelli.europa.models.RegistryBlob;
+import com.distelli.europa.util.ObjectKeyFactory;
+import com.distelli.objectStore.ObjectKey;
+import com.distelli.objectStore.ObjectPartKey;
+import com.distelli.objectStore.ObjectStore;
+import com.distelli.persistence.PageIterator;
+import com.google.inject.Injector;
+import java.util.Collections;
+import java.util.List;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Aborts blob uploads which were started, but never finished or canceled,
+ * so their multipart parts do not stay in the object store forever. An
+ * upload is abandoned if neither its start nor its last part is more
+ * recent than MAX_UPLOAD_AGE_MS.
+ *
+ * Uploads started before the pending index existed are found by a one
+ * time scan of the table, which adds them to the index as if they were
+ * started at that time.
+ */
+@Log4j
+@Data
+@NoArgsConstructor
+public class ReapUploadsTask implements Task {
+    public static final String ENTITY_TYPE = "gc:uploads";
+    // Uploads which have not finished in this time are considered abandoned:
+    public static final long MAX_UPLOAD_AGE_MS = 24 * 60 * 60 * 1000;
+    private static final int BATCH_SIZE = 50;
+    private static final int SCAN_BATCH_SIZE = 100;
+    private static final String LEGACY_UPLOADS_SCAN = "gc:uploads:legacy";
+    private static final long BATCH_DELAY_MS = 1000;
+    // The rest are reaped by the next run:
+    private static final int MAX_REAPED_PER_RUN = 5000;
+
+    @Override
+    public RawTaskEntry toRawTaskEntry() {
+        return RawTaskEntry.builder()
+            .entityType(ENTITY_TYPE)
+            .entityId("rblob")
+            // Only one reaper runs at a time:
+            .lockIds(Collections.singleton(ENTITY_TYPE))
+            .build();
+    }
+
+    public class Run implements Runnable {
+        @Inject
+        private RegistryBlobDb _blobDb;
+        @Inject
+        private SettingsDb _settingsDb;
+        @Inject
+        private Provider<ObjectStore> _objectStoreProvider;
+        @Inject
+        private Provider<ObjectKeyFactory> _objectKeyFactoryProvider;
+
+        @Override
+        public void run() {
+            if ( ! indexLegacyUploads() ) return;
+            long cutoff = System.currentTimeMillis() - MAX_UPLOAD_AGE_MS;
+            int reaped = 0;
+            // Pending uploads are ordered by start time, so stop at the first
+            // upload which is too young:
+            for ( PageIterator iter : new PageIterator().pageSize(BATCH_SIZE) ) {
+                List<RegistryBlob> blobs = _blobDb.listPendingUploads(iter);
+                for ( RegistryBlob blob : blobs ) {
+                    if ( null != blob.getStartTime() && blob.getStartTime() >= cutoff ) return;
+                    // Slow, but still active:
+                    if ( null != blob.getLastPartTime() && blob.getLastPartTime() >= cutoff ) continue;
+                    if ( reap(blob) && ++reaped >= MAX_REAPED_PER_RUN ) return;
+                }
+                if ( blobs.isEmpty() ) return;
+                if ( ! pause() ) return;
+            }
+        }
+
+        // Returns false if interrupted.
+        private boolean indexLegacyUploads() {
+            String marker = _settingsDb.getScanMarker(LEGACY_UPLOADS_SCAN);
+            if ( SettingsDb.SCAN_DONE.equals(marker) ) return true;
+            int indexed = 0;
+            for ( PageIterator iter : new PageIterator().pageSize(SCAN_BATCH_SIZE).marker(marker) ) {
+                for ( RegistryBlob blob : _blobDb.listBlobs(iter) ) {
+                    if ( null != blob.getDigest() || null != blob.getStartTime() ) continue;
+                    if ( _blobDb.markPending(blob.getBlobId()) ) indexed++;
+                }
+                _settingsDb.saveScanMarker(LEGACY_UPLOADS_SCAN, iter.getMarker());
+                if ( ! pause() ) return false;
+            }
+            if ( indexed > 0 ) log.info("Added "+indexed+" uploads to the pending index");
+            return true;
+        }
+
+        private boolean pause() {
+            try {
+                Thread.sleep(BATCH_DELAY_MS);
+                return true;
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // Returns false if a part was recorded since the upload was listed.
+        private boolean reap(RegistryBlob blob) {
+            String blobId = blob.getBlobId();
+            if ( ! _blobDb.forgetAbandonedUpload(blob) ) return false;
+            log.info("Reaping abandoned upload of blobId="+blobId+" started at "+blob.getStartTime()+
+                     " last part at "+blob.getLastPartTime());
+            if ( null != blob.getUploadId() ) {
+                ObjectKey objKey = _objectKeyFactoryProvider.get().forRegistryBlobId(blobId);
+                try {
+                    _objectStoreProvider.get().abortPut(
+                        ObjectPartKey.builder()
+                        .bucket(objKey.getBucket())
+                        .key(objKey.getKey())
+                        .uploadId(blob.getUploadId())
+                        .build());
+                } catch ( RuntimeException ex ) {
+                    // Perhaps the upload was already aborted, it is forgotten anyways:
+                    log.error("Unable to abort upload of blobId="+blobId+": "+ex.getMessage(), ex);
+                }
+            }
+            return true;
+        }
+    }
+
+    public static class Factory implements TaskFactory {
+        @Inject
+        private Injector _injector;
+        @Override
+        public Runnable toRunnable(RawTaskEntry entry) {
+            Run run = new ReapUploadsTask().new Run();
+            _injector.injectMembers(run);
+            return run;
+        }
+    }
+}
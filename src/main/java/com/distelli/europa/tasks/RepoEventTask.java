@@ -0,0 +1,221 @@
+package com.distelli.europa.tasks;
+
+import com.distelli.europa.db.ContainerRepoDb;
+import com.distelli.europa.db.NotificationsDb;
+import com.distelli.europa.db.PipelineDb;
+import com.distelli.europa.db.RepoEventsDb;
+import com.distelli.europa.db.TasksDb;
+import com.distelli.europa.models.ContainerRepo;
+import com.distelli.europa.models.DockerImage;
+import com.distelli.europa.models.Monitor;
+import com.distelli.europa.models.Notification;
+import com.distelli.europa.models.NotificationId;
+import com.distelli.europa.models.Pipeline;
+import com.distelli.europa.models.RawTaskEntry;
+import com.distelli.europa.models.RepoEvent;
+import com.distelli.europa.models.RepoEventType;
+import com.distelli.europa.notifiers.Notifier;
+import com.distelli.persistence.PageIterator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Injector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.inject.Inject;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Side effects of a tag being pushed or deleted: records the repo event,
+ * calls the webhooks and triggers the pipelines of the repo. Ran as a task
+ * so the manifest PUT/DELETE does not wait on them, and so they are
+ * retried if the node dies before they complete. The webhooks called and
+ * pipelines triggered are saved in the task state as they are done, so
+ * a retry does not repeat them.
+ */
+@Log4j
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RepoEventTask implements Task {
+    private static final ObjectMapper OM = new ObjectMapper();
+    static {
+        OM.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+    // Generated up-front so a retried task overwrites the same event:
+    private String eventId;
+    private RepoEventType eventType;
+    private Long eventTime;
+    private String domain;
+    private String containerRepoId;
+    private String tag;
+    private String manifestId;
+    private Long pushTime;
+    // Progress, saved in the task state so a retry skips what is done:
+    private Set<String> notifiedIds;
+    private List<String> notificationRecordIds;
+    private Set<String> triggeredPipelineIds;
+    @JsonIgnore
+    private Long taskId;
+
+    public static final String ENTITY_TYPE = "repo:event";
+
+    @Override
+    public RawTaskEntry toRawTaskEntry() {
+        return RawTaskEntry.builder()
+            .entityType(ENTITY_TYPE)
+            .entityId(eventId)
+            .lockIds(Collections.singleton(getLockId()))
+            .privateTaskState(toTaskState())
+            .build();
+    }
+
+    private byte[] toTaskState() {
+        try {
+            return OM.writeValueAsBytes(this);
+        } catch ( RuntimeException ex ) {
+            throw ex;
+        } catch ( Exception ex ) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Events of a repo are processed one at a time:
+    @JsonIgnore
+    public String getLockId() {
+        return ENTITY_TYPE + ":" + domain + "/" + containerRepoId;
+    }
+
+    public class Run implements Runnable {
+        @Inject
+        private RepoEventsDb _eventsDb;
+        @Inject
+        private ContainerRepoDb _repoDb;
+        @Inject
+        private NotificationsDb _notificationDb;
+        @Inject
+        private Notifier _notifier;
+        @Inject
+        private PipelineDb _pipelineDb;
+        @Inject
+        private TasksDb _tasksDb;
+        @Inject
+        private Monitor _monitor;
+
+        @Override
+        public void run() {
+            if ( null == notifiedIds ) notifiedIds = new HashSet<>();
+            if ( null == notificationRecordIds ) notificationRecordIds = new ArrayList<>();
+            if ( null == triggeredPipelineIds ) triggeredPipelineIds = new HashSet<>();
+            RepoEvent event = RepoEvent.builder()
+                .id(eventId)
+                .domain(domain)
+                .repoId(containerRepoId)
+                .eventType(eventType)
+                .eventTime(eventTime)
+                .imageTags(Collections.singletonList(tag))
+                .imageSha(manifestId)
+                .build();
+            _eventsDb.save(event);
+            _repoDb.setLastEvent(event.getDomain(), event.getRepoId(), event);
+
+            DockerImage image = DockerImage.builder()
+                .imageTags(event.getImageTags())
+                .pushTime(pushTime)
+                .imageSha(manifestId)
+                .build();
+
+            notify(image, event);
+
+            if(log.isDebugEnabled())
+                log.debug("Finding pipelines to execute for domain="+domain+" repoId="+containerRepoId);
+            for ( PageIterator it : new PageIterator() ) {
+                for ( Pipeline pipeline : _pipelineDb.listByContainerRepoId(domain, containerRepoId, it) ) {
+                    if ( triggeredPipelineIds.contains(pipeline.getId()) ) continue;
+                    if(log.isDebugEnabled())
+                        log.debug("Adding Pipeline task for id: "+pipeline.getId());
+                    _tasksDb.addTask(_monitor,
+                                     PipelineTask.builder()
+                                     .domain(domain)
+                                     .tag(tag)
+                                     .containerRepoId(containerRepoId)
+                                     .manifestId(manifestId)
+                                     .pipelineId(pipeline.getId())
+                                     .build());
+                    triggeredPipelineIds.add(pipeline.getId());
+                    saveProgress();
+                }
+            }
+        }
+
+        private void saveProgress() {
+            if ( null == taskId ) return;
+            _tasksDb.updateTaskState(taskId, toTaskState());
+        }
+
+        private void notify(DockerImage image, RepoEvent event)
+        {
+            try {
+                ContainerRepo repo = null;
+                //first get the list of notifications.
+                //for each notification call the notifier
+                List<Notification> notifications = _notificationDb.listNotifications(domain,
+                                                                                     containerRepoId,
+                                                                                     new PageIterator().pageSize(100));
+                for(Notification notification : notifications)
+                {
+                    if ( notifiedIds.contains(notification.getId()) ) continue;
+                    if ( null == repo ) {
+                        repo = _repoDb.getRepo(domain, containerRepoId);
+                        if ( null == repo ) {
+                            log.error("Manifest references null ContainerRepo domain="+domain+
+                                      " repoId="+containerRepoId);
+                            break;
+                        }
+                    }
+                    if(log.isDebugEnabled())
+                        log.debug("Triggering Notification: "+notification+" for Image: "+image+" and Event: "+event);
+                    NotificationId nfId = _notifier.notify(notification, image, repo);
+                    if(nfId != null)
+                        notificationRecordIds.add(nfId.toCanonicalId());
+                    notifiedIds.add(notification.getId());
+                    saveProgress();
+                }
+                _eventsDb.setNotifications(event.getDomain(), event.getRepoId(), event.getId(), notificationRecordIds);
+                event.setNotifications(notificationRecordIds);
+            } catch(Throwable t) {
+                log.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    public static class Factory implements TaskFactory {
+        @Inject
+        private Injector _injector;
+        public RepoEventTask toTask(RawTaskEntry entry) {
+            try {
+                RepoEventTask task = OM.readValue(entry.getPrivateTaskState(), RepoEventTask.class);
+                task.setTaskId(entry.getTaskId());
+                return task;
+            } catch ( RuntimeException ex ) {
+                throw ex;
+            } catch ( Exception ex ) {
+                throw new RuntimeException(ex);
+            }
+        }
+        @Override
+        public Runnable toRunnable(RawTaskEntry entry) {
+            Run run = toTask(entry).new Run();
+            _injector.injectMembers(run);
+            return run;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.distelli.europa.util;
+
+import com.distelli.europa.EuropaConfiguration;
+import com.distelli.objectStore.ObjectKey;
+import com.distelli.objectStore.ObjectStore;
+import com.distelli.utils.CompactUUID;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import lombok.extern.log4j.Log4j;
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
+
+/**
+ * Size bounded, content addressed, read-through disk cache of registry
+ * blobs. Blobs are immutable by digest, so entries never need to be
+ * invalidated, only evicted (least recently used first).
+ *
+ * Entries are populated by downloading the blob into a temp file which is
+ * only renamed into place once the full blob was read and its sha256
+ * matches the digest, so a crash never leaves a partial entry.
+ *
+ * Concurrent reads of the same digest are coalesced (single-flight): one
+ * background download per digest is shared by all readers, which tail
+ * the temp file as it grows. This bounds the object store fan-out when
+ * many nodes pull the same new layer at once. Small blobs that are not
+ * cached on disk are instead read into memory once and shared.
+ *
+ * At most MAX_FILLS downloads run at once and at most
+ * MAX_SHARED_TOTAL_BYTES are read into memory at once, beyond that reads
+ * go directly to the object store.
+ */
+@Log4j
+@Singleton
+public class BlobCache
+{
+    public interface Reader<T> {
+        public T read(InputStream in) throws IOException;
+    }
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long MAX_SHARED_BYTES = 4*1024*1024;
+    private static final long MAX_SHARED_TOTAL_BYTES = 64*1024*1024;
+    private static final int MAX_FILLS = 16;
+
+    private final File _dir;
+    private final long _maxBytes;
+    // digest -> size, iterates from least to most recently used:
+    private final LinkedHashMap<String, Long> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _totalBytes = 0;
+    // digest -> in progress download into the cache:
+    private final ConcurrentHashMap<String, Fill> _fills = new ConcurrentHashMap<>();
+    // digest -> in progress in-memory read of a small uncached blob:
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> _shared = new ConcurrentHashMap<>();
+    // Bytes of the in progress in-memory reads:
+    private final AtomicLong _sharedBytes = new AtomicLong();
+    private final ExecutorService _fillExecutor;
+
+    @Inject
+    public BlobCache(EuropaConfiguration config)
+    {
+        File dir = null;
+        if ( null != config.getBlobCacheDir() && ! config.getBlobCacheDir().trim().isEmpty() ) {
+            dir = new File(config.getBlobCacheDir());
+            if ( ! dir.isDirectory() && ! dir.mkdirs() ) {
+                log.error("Unable to create blobCacheDir="+dir+", blob cache is disabled");
+                dir = null;
+            }
+        }
+        _maxBytes = config.getBlobCacheMaxBytes();
+        _dir = ( _maxBytes > 0 ) ? dir : null;
+        AtomicInteger threadCounter = new AtomicInteger();
+        // No queue, a download which can not start right away is rejected:
+        ThreadPoolExecutor fillExecutor = new ThreadPoolExecutor(
+            MAX_FILLS, MAX_FILLS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            (runnable) -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setName(String.format("BlobCacheFill-%d", threadCounter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        fillExecutor.allowCoreThreadTimeOut(true);
+        _fillExecutor = fillExecutor;
+        if ( null != _dir ) load();
+    }
+
+    public boolean isEnabled()
+    {
+        return null != _dir;
+    }
+
+    /**
+     * Reads a blob through the cache.
+     *
+     * @param objectStore the backing object store
+     * @param key the object key of the blob in the backing store
+     * @param digest the sha256:hex digest of the blob
+     * @param size the size of the blob
+     * @param reader consumes the blob content
+     * @return the result of the reader
+     */
+    public <T> T get(ObjectStore objectStore, ObjectKey key, String digest, long size, Reader<T> reader)
+        throws IOException
+    {
+        File file = getFile(digest);
+        if ( null != file ) {
+            try ( InputStream in = new FileInputStream(file) ) {
+                return reader.read(in);
+            } catch ( FileNotFoundException ex ) {
+                // Evicted after getFile(), read from the object store.
+            }
+        }
+        if ( isCacheable(digest, size) ) {
+            // Concurrent pulls of the same digest share a single download:
+            String lowerDigest = digest.toLowerCase();
+            Fill fill = _fills.computeIfAbsent(lowerDigest, (ignored) -> startFill(objectStore, key, lowerDigest, size));
+            InputStream in = null;
+            try {
+                // null if too many downloads are in progress:
+                if ( null != fill ) in = fill.open();
+            } catch ( IOException ex ) {
+                // The shared download failed, read from the object store.
+            }
+            if ( null != in ) {
+                try {
+                    return reader.read(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } else if ( size <= MAX_SHARED_BYTES ) {
+            byte[] content = getShared(objectStore, key, digest.toLowerCase(), size);
+            if ( null != content ) return reader.read(new ByteArrayInputStream(content));
+        }
+        return objectStore.get(key, (meta, in) -> reader.read(in));
+    }
+
+    /**
+     * Reads the inclusive byte range [first, last] of a blob. Cache misses
+     * do a ranged read of the object store and do not populate the cache.
+     */
+    public <T> T get(ObjectStore objectStore, ObjectKey key, String digest, long first, long last, Reader<T> reader)
+        throws IOException
+    {
+        File file = getFile(digest);
+        if ( null != file ) {
+            try ( InputStream in = new FileInputStream(file) ) {
+                skipFully(in, first);
+                return reader.read(new LimitInputStream(in, last - first + 1));
+            } catch ( FileNotFoundException ex ) {
+                // Evicted after getFile(), read from the object store.
+            }
+        }
+        return objectStore.get(key, (meta, in) -> reader.read(in), first, last);
+    }
+
+    /**
+     * @return the cached file for this digest, or null if it is not cached.
+     */
+    public File getFile(String digest)
+    {
+        if ( null == _dir || ! Tag.isDigest(digest) ) return null;
+        digest = digest.toLowerCase();
+        synchronized ( this ) {
+            if ( null == _entries.get(digest) ) return null;
+        }
+        File file = toFile(digest);
+        if ( ! file.isFile() ) {
+            remove(digest);
+            return null;
+        }
+        // Keeps the LRU order across restarts:
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    // Returns null if MAX_FILLS downloads are already in progress.
+    private Fill startFill(ObjectStore objectStore, ObjectKey key, String digest, long size)
+    {
+        Fill fill = new Fill(objectStore, key, digest, size);
+        try {
+            _fillExecutor.execute(fill);
+        } catch ( RejectedExecutionException ex ) {
+            return null;
+        }
+        return fill;
+    }
+
+    /**
+     * Small blobs that are not cached on disk are read into memory once
+     * and shared with all concurrent readers.
+     *
+     * @return the blob, or null if MAX_SHARED_TOTAL_BYTES are already
+     *     being read.
+     */
+    private byte[] getShared(ObjectStore objectStore, ObjectKey key, String digest, long size)
+        throws IOException
+    {
+        CompletableFuture<byte[]> future = _shared.get(digest);
+        if ( null == future ) {
+            if ( _sharedBytes.addAndGet(size) > MAX_SHARED_TOTAL_BYTES ) {
+                _sharedBytes.addAndGet(-size);
+                return null;
+            }
+            future = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing = _shared.putIfAbsent(digest, future);
+            if ( null == existing ) {
+                try {
+                    future.complete(objectStore.get(key, (meta, in) -> readFully(in, size)));
+                } catch ( Throwable ex ) {
+                    future.completeExceptionally(ex);
+                } finally {
+                    _shared.remove(digest, future);
+                    _sharedBytes.addAndGet(-size);
+                }
+            } else {
+                _sharedBytes.addAndGet(-size);
+                future = existing;
+            }
+        }
+        try {
+            return future.get();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch ( ExecutionException ex ) {
+            if ( ex.getCause() instanceof IOException ) throw (IOException)ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static byte[] readFully(InputStream in, long size) throws IOException
+    {
+        byte[] content = new byte[(int)size];
+        int offset = 0;
+        while ( offset < content.length ) {
+            int len = in.read(content, offset, content.length - offset);
+            if ( len < 0 ) throw new IOException("Unexpected end of blob, expected "+size+" bytes");
+            offset += len;
+        }
+        if ( in.read() >= 0 ) throw new IOException("Blob is larger than the expected "+size+" bytes");
+        return content;
+    }
+
+    private boolean isCacheable(String digest, long size)
+    {
+        // Avoid a single blob flushing most of the cache:
+        return null != _dir && Tag.isDigest(digest) && size > 0 && size <= _maxBytes / 2;
+    }
+
+    private File toFile(String digest)
+    {
+        return new File(_dir, digest.replace(':', '-'));
+    }
+
+    private synchronized void remove(String digest)
+    {
+        Long size = _entries.remove(digest);
+        if ( null != size ) _totalBytes -= size;
+    }
+
+    private synchronized void add(String digest, long size)
+    {
+        if ( null != _entries.put(digest, size) ) return;
+        _totalBytes += size;
+        Iterator<Map.Entry<String, Long>> it = _entries.entrySet().iterator();
+        while ( _totalBytes > _maxBytes && it.hasNext() ) {
+            Map.Entry<String, Long> eldest = it.next();
+            if ( digest.equals(eldest.getKey()) ) continue;
+            it.remove();
+            _totalBytes -= eldest.getValue();
+            // Open readers on unix can still finish reading the file:
+            if ( ! toFile(eldest.getKey()).delete() ) {
+                log.warn("Unable to delete evicted blob cache entry "+eldest.getKey());
+            }
+        }
+    }
+
+    private void load()
+    {
+        File[] files = _dir.listFiles();
+        if ( null == files ) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for ( File file : files ) {
+            String name = file.getName();
+            if ( name.endsWith(TMP_SUFFIX) ) {
+                // Left over from an unclean shutdown:
+                file.delete();
+                continue;
+            }
+            String digest = name.replaceFirst("-", ":");
+            if ( ! file.isFile() || ! Tag.isDigest(digest) ) continue;
+            add(digest, file.length());
+        }
+        log.info("Loaded blob cache dir="+_dir+" entries="+_entries.size()+" bytes="+_totalBytes);
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException
+    {
+        while ( count > 0 ) {
+            long skipped = in.skip(count);
+            if ( skipped <= 0 ) throw new IOException("Unexpected end of cached blob");
+            count -= skipped;
+        }
+    }
+
+    private static class LimitInputStream extends FilterInputStream {
+        private long _remaining;
+        private LimitInputStream(InputStream in, long limit) {
+            super(in);
+            _remaining = limit;
+        }
+        @Override
+        public int read() throws IOException {
+            if ( _remaining <= 0 ) return -1;
+            int result = super.read();
+            if ( result >= 0 ) _remaining--;
+            return result;
+        }
+        @Override
+        public int read(byte[] buff, int off, int len) throws IOException {
+            if ( _remaining <= 0 ) return -1;
+            int result = super.read(buff, off, (int)Math.min(len, _remaining));
+            if ( result > 0 ) _remaining -= result;
+            return result;
+        }
+    }
+
+    /**
+     * Downloads a blob into a temp file in the background. Any number of
+     * readers tail the temp file while it is being written, see {@link
+     * #open()}. Once the full blob was written and its sha256 matches the
+     * digest it is renamed into place.
+     */
+    private class Fill implements Runnable {
+        private final ObjectStore _objectStore;
+        private final ObjectKey _key;
+        private final String _digest;
+        private final long _size;
+        private final File _tmp;
+        // Guarded by this:
+        private long _written = 0;
+        private boolean _committed = false;
+        private Throwable _error = null;
+
+        private Fill(ObjectStore objectStore, ObjectKey key, String digest, long size) {
+            _objectStore = objectStore;
+            _key = key;
+            _digest = digest;
+            _size = size;
+            _tmp = new File(_dir, digest.replace(':', '-')+"."+CompactUUID.randomUUID()+TMP_SUFFIX);
+        }
+
+        @Override
+        public void run() {
+            try {
+                _objectStore.get(_key, (meta, in) -> {
+                        download(in);
+                        return null;
+                    });
+            } catch ( Throwable ex ) {
+                log.warn("Unable to fill blob cache entry "+_digest+": "+ex.getMessage(), ex);
+                synchronized ( this ) {
+                    _error = ex;
+                    notifyAll();
+                }
+            } finally {
+                _fills.remove(_digest, this);
+                synchronized ( this ) {
+                    if ( ! _committed ) _tmp.delete();
+                }
+            }
+        }
+
+        private void download(InputStream in) throws IOException {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch ( Exception ex ) {
+                throw new IOException(ex);
+            }
+            long count = 0;
+            try ( FileOutputStream out = new FileOutputStream(_tmp) ) {
+                byte[] buff = new byte[64*1024];
+                while ( true ) {
+                    int len = in.read(buff);
+                    if ( len < 0 ) break;
+                    if ( len == 0 ) continue;
+                    count += len;
+                    if ( count > _size ) break;
+                    out.write(buff, 0, len);
+                    md.update(buff, 0, len);
+                    synchronized ( this ) {
+                        _written = count;
+                        notifyAll();
+                    }
+                }
+                if ( count != _size ) {
+                    throw new IOException("Expected "+_size+" bytes for "+_digest+" but got "+
+                                          ( count > _size ? "more" : ""+count ));
+                }
+                String computed = "sha256:" + printHexBinary(md.digest()).toLowerCase();
+                if ( ! _digest.equals(computed) ) {
+                    throw new IOException("Blob digest mismatch, expected "+_digest+" but computed "+computed);
+                }
+                out.getFD().sync();
+            }
+            synchronized ( this ) {
+                Files.move(_tmp.toPath(), toFile(_digest).toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                _committed = true;
+                notifyAll();
+            }
+            add(_digest, _size);
+        }
+
+        /**
+         * @return a stream of the full blob which blocks until the bytes
+         *     are downloaded.
+         * @throws IOException if the download already failed.
+         */
+        private synchronized InputStream open() throws IOException {
+            if ( null != _error ) throw new IOException("Unable to fetch "+_digest, _error);
+            return new TailInputStream();
+        }
+
+        // Open file descriptors survive the rename into place:
+        private synchronized InputStream openFile() throws IOException {
+            return new FileInputStream(_committed ? toFile(_digest) : _tmp);
+        }
+
+        // Waits until more than position bytes are available.
+        private synchronized long awaitAvailable(long position) throws IOException {
+            while ( ! _committed && null == _error && _written <= position ) {
+                try {
+                    wait();
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if ( null != _error ) throw new IOException("Unable to fetch "+_digest, _error);
+            return _committed ? _size : _written;
+        }
+
+        private class TailInputStream extends InputStream {
+            // Opened once the download created the file:
+            private InputStream _in = null;
+            private long _position = 0;
+            @Override
+            public int read() throws IOException {
+                byte[] buff = new byte[1];
+                int len = read(buff, 0, 1);
+                return ( len <= 0 ) ? -1 : buff[0] & 0xFF;
+            }
+            @Override
+            public int read(byte[] buff, int off, int len) throws IOException {
+                if ( len <= 0 ) return 0;
+                if ( _position >= _size ) return -1;
+                long available = awaitAvailable(_position);
+                if ( null == _in ) _in = openFile();
+                int result = _in.read(buff, off, (int)Math.min(len, available - _position));
+                if ( result < 0 ) throw new IOException("Unexpected end of blob cache entry "+_digest);
+                _position += result;
+                return result;
+            }
+            @Override
+            public void close() throws IOException {
+                if ( null != _in ) _in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.distelli.europa.util;
+
+import com.distelli.europa.models.StorageSettings;
+import com.distelli.objectStore.ObjectKey;
+import com.distelli.objectStore.ObjectStoreType;
+import java.net.URI;
+import java.util.Date;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Decides if a blob pull should be redirected to a short lived presigned
+ * object store URL so the blob bytes do not flow through europa.
+ *
+ * This is opt-in by setting the osRedirectMinSize storage setting.
+ */
+@Singleton
+public class BlobRedirector
+{
+    public static final long EXPIRES_SECONDS = 10*60;
+    private static final String DEFAULT_REGION = "us-east-1";
+
+    @Inject
+    private Provider<StorageSettings> _storageSettingsProvider;
+
+    /**
+     * @param objKey the object key of the blob
+     * @param size the size of the blob, null if unknown
+     * @return the URL to redirect to, or null if the blob should be
+     *     served directly.
+     */
+    public URI getRedirect(ObjectKey objKey, Long size)
+    {
+        StorageSettings settings = _storageSettingsProvider.get();
+        if ( null == settings ||
+             settings.getOsType() != ObjectStoreType.S3 ||
+             null == settings.getOsRedirectMinSize() ||
+             null == size ||
+             size < settings.getOsRedirectMinSize() )
+        {
+            return null;
+        }
+        String region = settings.getOsRegion();
+        if ( null == region || region.trim().isEmpty() ) region = DEFAULT_REGION;
+        URI endpoint = URI.create(settings.getOsEndpoint());
+        if ( null == endpoint.getHost() ) return null;
+        S3Presigner presigner = new S3Presigner(settings.getOsCredKey(), settings.getOsCredSecret(), region);
+        return presigner.presignGet(endpoint,
+                                    objKey.getBucket(),
+                                    objKey.getKey(),
+                                    useVirtualHost(endpoint, objKey.getBucket()),
+                                    EXPIRES_SECONDS,
+                                    new Date());
+    }
+
+    // S3 compatible stand-ins (minio, etc) generally require path style
+    // addressing, as do bucket names that are not valid host names over
+    // https:
+    private static boolean useVirtualHost(URI endpoint, String bucket)
+    {
+        String host = endpoint.getHost();
+        return null != host &&
+            host.endsWith(".amazonaws.com") &&
+            bucket.matches("^[a-z0-9][a-z0-9\\-]{1,61}[a-z0-9]$");
+    }
+}
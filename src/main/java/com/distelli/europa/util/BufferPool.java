@@ -0,0 +1,102 @@
+package com.distelli.europa.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Bounded pool of copy buffers for streaming blobs, so every streamed
+ * request does not allocate (and promote) its own large buffer.
+ *
+ * The pool only retains up to MAX_POOLED buffers, when it is empty a new
+ * buffer is allocated (a miss) and buffers released to a full pool are
+ * left to the garbage collector. The hit/miss counts are logged
+ * periodically (see scheduleStatsLogging()), a steady rate of misses
+ * means MAX_POOLED is too small for the load.
+ */
+@Log4j
+@Singleton
+public class BufferPool
+{
+    private static final long STATS_INTERVAL_MS = 10 * 60 * 1000;
+
+    // Larger than jetty's default output buffer, so writes bypass the
+    // response aggregation buffer:
+    public static final int BUFFER_SIZE = 64*1024;
+    private static final int MAX_POOLED = 1024;
+
+    private final ArrayBlockingQueue<byte[]> _pool = new ArrayBlockingQueue<>(MAX_POOLED);
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private long _lastLoggedMisses = -1;
+    private long _lastLoggedHits = -1;
+
+    @Inject
+    private ScheduledExecutorService _scheduledExecutorService;
+
+    public synchronized void scheduleStatsLogging()
+    {
+        _scheduledExecutorService.scheduleAtFixedRate(
+            this::logStats,
+            STATS_INTERVAL_MS,
+            STATS_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    // Only logs if the pool was used since the last time:
+    private synchronized void logStats()
+    {
+        long hits = getHits();
+        long misses = getMisses();
+        if ( hits == _lastLoggedHits && misses == _lastLoggedMisses ) return;
+        log.info(this);
+        _lastLoggedHits = hits;
+        _lastLoggedMisses = misses;
+    }
+
+    /**
+     * @return a buffer of BUFFER_SIZE bytes, which should be passed to
+     *     {@link #release(byte[])} once it is no longer used.
+     */
+    public byte[] acquire()
+    {
+        byte[] buff = _pool.poll();
+        if ( null != buff ) {
+            _hits.incrementAndGet();
+            return buff;
+        }
+        _misses.incrementAndGet();
+        return new byte[BUFFER_SIZE];
+    }
+
+    public void release(byte[] buff)
+    {
+        if ( null == buff || buff.length != BUFFER_SIZE ) return;
+        _pool.offer(buff);
+    }
+
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    public int getPooled()
+    {
+        return _pool.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPool(hits="+getHits()+", misses="+getMisses()+", pooled="+getPooled()+")";
+    }
+}
@@ -0,0 +1,103 @@
+package com.distelli.europa.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single HTTP byte range (RFC 7233) resolved against a known entity size.
+ *
+ * Only a single range is supported. Multi-range requests (and anything
+ * that fails to parse) are ignored, which per the RFC means the full
+ * entity is served with a 200.
+ */
+public class ByteRange {
+    private static final Pattern RANGE_PATTERN =
+        Pattern.compile("^\\s*bytes\\s*=\\s*([0-9]*)\\s*-\\s*([0-9]*)\\s*$");
+
+    private final long _first;
+    private final long _last;
+    private final long _size;
+
+    private ByteRange(long first, long last, long size) {
+        _first = first;
+        _last = last;
+        _size = size;
+    }
+
+    /**
+     * Parses a Range header value.
+     *
+     * @param header the Range header value, may be null
+     * @param size the total size of the entity
+     * @return null if the range should be ignored, otherwise the resolved
+     *     range. Check {@link #isSatisfiable()} before using it.
+     */
+    public static ByteRange parse(String header, long size) {
+        if ( null == header ) return null;
+        Matcher matcher = RANGE_PATTERN.matcher(header);
+        if ( ! matcher.matches() ) return null;
+        String firstStr = matcher.group(1);
+        String lastStr = matcher.group(2);
+        try {
+            if ( firstStr.isEmpty() ) {
+                // Suffix range: bytes=-N
+                if ( lastStr.isEmpty() ) return null;
+                long suffix = Long.parseLong(lastStr);
+                if ( suffix <= 0 || size <= 0 ) return unsatisfiable(size);
+                return new ByteRange(Math.max(0, size - suffix), size - 1, size);
+            }
+            long first = Long.parseLong(firstStr);
+            long last = lastStr.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastStr);
+            if ( last < first ) return null;
+            if ( first >= size ) return unsatisfiable(size);
+            return new ByteRange(first, Math.min(last, size - 1), size);
+        } catch ( NumberFormatException ex ) {
+            // Overflow, treat as a syntactically invalid range:
+            return null;
+        }
+    }
+
+    /**
+     * Implements the If-Range precondition. We only ever send strong
+     * entity tags (and never Last-Modified), so anything that is not an
+     * exact match for the current entity tag means "send everything".
+     *
+     * @param ifRange the If-Range header value, may be null
+     * @param etag the entity tag of the current representation
+     * @return true if the Range header should be honored
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag) {
+        if ( null == ifRange ) return true;
+        return ifRange.trim().equals(etag);
+    }
+
+    private static ByteRange unsatisfiable(long size) {
+        return new ByteRange(-1, -1, size);
+    }
+
+    public boolean isSatisfiable() {
+        return _first >= 0;
+    }
+
+    public long getFirst() {
+        return _first;
+    }
+
+    public long getLast() {
+        return _last;
+    }
+
+    public long getLength() {
+        return _last - _first + 1;
+    }
+
+    public String toContentRange() {
+        if ( ! isSatisfiable() ) return "bytes */"+_size;
+        return "bytes "+_first+"-"+_last+"/"+_size;
+    }
+
+    @Override
+    public String toString() {
+        return toContentRange();
+    }
+}
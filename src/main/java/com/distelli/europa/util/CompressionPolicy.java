@@ -0,0 +1,48 @@
+package com.distelli.europa.util;
+
+import com.distelli.webserver.WebResponse;
+
+/**
+ * Decides which registry responses are worth gzip'ing.
+ *
+ * The web server gzips every response unless it already has a
+ * Content-Encoding. Layers are (almost always) already gzip'ed tarballs,
+ * so compressing them again burns CPU for nothing and hides the size
+ * from the docker client. Only small JSON documents (manifests, image
+ * configs, tag lists, the catalog) are compressed.
+ */
+public class CompressionPolicy {
+    public static final long MAX_COMPRESSED_SIZE = 1024*1024;
+
+    /**
+     * @param mediaType the Content-Type of the response, may be null
+     * @param size the size of the response body, null if unknown
+     * @return true if the response should be compressed
+     */
+    public static boolean shouldCompress(String mediaType, Long size) {
+        if ( null == mediaType ) return false;
+        if ( null != size && size > MAX_COMPRESSED_SIZE ) return false;
+        String type = mediaType.toLowerCase();
+        int semi = type.indexOf(';');
+        if ( semi >= 0 ) type = type.substring(0, semi);
+        type = type.trim();
+        return type.startsWith("text/") ||
+            type.equals("application/json") ||
+            type.endsWith("+json") ||
+            // Signed v1 manifests are JSON too:
+            type.endsWith("+prettyjws");
+    }
+
+    /**
+     * Applies the policy to a response. Uncompressed responses are sent
+     * as-is with an accurate Content-Length (when the size is known).
+     */
+    public static void apply(WebResponse response, String mediaType, Long size) {
+        if ( shouldCompress(mediaType, size) ) return;
+        // Setting the Content-Encoding disables the gzip of the response:
+        response.setResponseHeader("Content-Encoding", "identity");
+        if ( null != size ) {
+            response.setResponseHeader("Content-Length", ""+size);
+        }
+    }
+}
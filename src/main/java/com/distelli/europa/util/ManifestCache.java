@@ -0,0 +1,103 @@
+package com.distelli.europa.util;
+
+import com.distelli.europa.EuropaConfiguration;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Size bounded in memory cache of manifest content keyed by the manifest
+ * digest. Manifest content is immutable by digest, so entries never need
+ * to be invalidated, only evicted (least recently used first).
+ *
+ * With manifestCacheOffHeap the content is kept in direct buffers, so a
+ * large cache does not add to the garbage collected heap.
+ */
+@Singleton
+public class ManifestCache
+{
+    // Larger manifests are streamed from the object store:
+    public static final long MAX_ENTRY_BYTES = 1024*1024;
+
+    public static class Entry {
+        private final String _contentType;
+        private final byte[] _content;
+        private final ByteBuffer _offHeapContent;
+
+        private Entry(String contentType, byte[] content, boolean offHeap) {
+            _contentType = contentType;
+            if ( offHeap ) {
+                _offHeapContent = ByteBuffer.allocateDirect(content.length);
+                _offHeapContent.put(content);
+                _offHeapContent.flip();
+                _content = null;
+            } else {
+                _offHeapContent = null;
+                _content = content;
+            }
+        }
+
+        public String getContentType() {
+            return _contentType;
+        }
+
+        public long getContentLength() {
+            return ( null != _content ) ? _content.length : _offHeapContent.capacity();
+        }
+
+        // Callers must not modify the returned array.
+        public byte[] getContent() {
+            if ( null != _content ) return _content;
+            byte[] content = new byte[_offHeapContent.capacity()];
+            _offHeapContent.duplicate().get(content);
+            return content;
+        }
+    }
+
+    private final long _maxBytes;
+    private final boolean _offHeap;
+    // digest -> entry, iterates from least to most recently used:
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _totalBytes = 0;
+
+    @Inject
+    public ManifestCache(EuropaConfiguration config)
+    {
+        _maxBytes = config.getManifestCacheMaxBytes();
+        _offHeap = config.isManifestCacheOffHeap();
+    }
+
+    public boolean isCacheable(long size)
+    {
+        return size <= MAX_ENTRY_BYTES && size <= _maxBytes;
+    }
+
+    /**
+     * @return the cached manifest or null if it is not cached.
+     */
+    public synchronized Entry get(String manifestId)
+    {
+        return _entries.get(manifestId);
+    }
+
+    public Entry put(String manifestId, String contentType, byte[] content)
+    {
+        // Content that is not cached is only wrapped, not copied off heap:
+        if ( ! isCacheable(content.length) ) return new Entry(contentType, content, false);
+        Entry entry = new Entry(contentType, content, _offHeap);
+        synchronized ( this ) {
+            Entry old = _entries.put(manifestId, entry);
+            if ( null != old ) _totalBytes -= old.getContentLength();
+            _totalBytes += entry.getContentLength();
+            Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+            while ( _totalBytes > _maxBytes && it.hasNext() ) {
+                _totalBytes -= it.next().getValue().getContentLength();
+                it.remove();
+            }
+        }
+        return entry;
+    }
+}
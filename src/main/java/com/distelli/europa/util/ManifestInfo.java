@@ -0,0 +1,117 @@
+package com.distelli.europa.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import lombok.Getter;
+
+/**
+ * The fields of a docker manifest the registry needs, extracted with a
+ * streaming parser so no JSON tree is built:
+ *
+ *   schemaVersion=2: mediaType, config.digest and layers[].digest
+ *   schemaVersion=1: fsLayers[].blobSum
+ */
+public class ManifestInfo
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Getter
+    private String mediaType;
+    private String configDigest;
+    // null if the field is not an array:
+    private List<String> layerDigests;
+    private List<String> fsLayerDigests;
+
+    /**
+     * @return the digests of the blobs referenced by the manifest, a layer
+     *     without a digest is referenced as the empty string.
+     */
+    public Set<String> getDigests()
+    {
+        Set<String> digests = new TreeSet<>();
+        if ( null != layerDigests ) {
+            if ( null != configDigest ) digests.add(configDigest);
+            digests.addAll(layerDigests);
+        } else if ( null != fsLayerDigests ) {
+            digests.addAll(fsLayerDigests);
+        }
+        return digests;
+    }
+
+    public static ManifestInfo parse(byte[] content, int offset, int length) throws IOException
+    {
+        ManifestInfo info = new ManifestInfo();
+        try ( JsonParser parser = JSON_FACTORY.createParser(content, offset, length) ) {
+            if ( JsonToken.START_OBJECT != parser.nextToken() ) {
+                parser.skipChildren();
+                return info;
+            }
+            while ( JsonToken.FIELD_NAME == parser.nextToken() ) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch ( field ) {
+                case "mediaType":
+                    if ( JsonToken.VALUE_STRING == token ) info.mediaType = parser.getText();
+                    break;
+                case "config":
+                    if ( JsonToken.START_OBJECT == token ) {
+                        info.configDigest = getTextField(parser, "digest");
+                        continue;
+                    }
+                    break;
+                case "layers":
+                    if ( JsonToken.START_ARRAY == token ) {
+                        info.layerDigests = getTextFields(parser, "digest");
+                        continue;
+                    }
+                    break;
+                case "fsLayers":
+                    if ( JsonToken.START_ARRAY == token ) {
+                        info.fsLayerDigests = getTextFields(parser, "blobSum");
+                        continue;
+                    }
+                    break;
+                }
+                parser.skipChildren();
+            }
+        }
+        return info;
+    }
+
+    // Parser is at START_OBJECT, returns the named string field and leaves the parser at END_OBJECT:
+    private static String getTextField(JsonParser parser, String name) throws IOException
+    {
+        String value = null;
+        while ( JsonToken.FIELD_NAME == parser.nextToken() ) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ( name.equals(field) ) {
+                value = ( JsonToken.VALUE_STRING == token ) ? parser.getText() : null;
+            }
+            parser.skipChildren();
+        }
+        return value;
+    }
+
+    // Parser is at START_ARRAY, returns the named string field of each element (or ""):
+    private static List<String> getTextFields(JsonParser parser, String name) throws IOException
+    {
+        List<String> values = new ArrayList<>();
+        for ( JsonToken token = parser.nextToken(); JsonToken.END_ARRAY != token; token = parser.nextToken() ) {
+            String value = null;
+            if ( JsonToken.START_OBJECT == token ) {
+                value = getTextField(parser, name);
+            } else {
+                parser.skipChildren();
+            }
+            values.add(( null == value ) ? "" : value);
+        }
+        return values;
+    }
+}
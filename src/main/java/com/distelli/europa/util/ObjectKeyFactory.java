@@ -11,6 +11,7 @@ import com.distelli.europa.EuropaConfiguration;
 import com.distelli.europa.notifiers.*;
 import com.distelli.europa.models.*;
 
+import java.io.File;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import lombok.extern.log4j.Log4j;
@@ -23,6 +24,7 @@ public class ObjectKeyFactory
 {
     private String _defaultBucket;
     private String _pathPrefix;
+    private String _diskRoot;
 
     public static final String WEBHOOKS_STORAGE_PREFIX = "webhooks";
     public static final String BLOBS_PREFIX = "blobs";
@@ -34,6 +36,8 @@ public class ObjectKeyFactory
     {
         _defaultBucket = storageSettings.getOsBucket();
         _pathPrefix = storageSettings.getOsPathPrefix();
+        if(storageSettings.getOsType() == ObjectStoreType.DISK)
+            _diskRoot = storageSettings.getOsDiskRoot();
     }
 
     public String getDefaultBucket()
@@ -46,6 +50,18 @@ public class ObjectKeyFactory
         return _pathPrefix;
     }
 
+    /**
+     * Returns the local file backing an object when the DISK object store
+     * is in use, otherwise null. Callers should verify the file (exists,
+     * expected length) before reading it directly.
+     */
+    public File toLocalFile(ObjectKey objectKey)
+    {
+        if(_diskRoot == null)
+            return null;
+        return new File(new File(_diskRoot, objectKey.getBucket()), objectKey.getKey());
+    }
+
     public ObjectKey forWebhookRecord(NotificationId notificationId)
     {
         String key = null;
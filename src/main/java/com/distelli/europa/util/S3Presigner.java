@@ -0,0 +1,134 @@
+package com.distelli.europa.util;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
+
+/**
+ * Creates AWS signature version 4 presigned GET URLs (query string
+ * authentication) for S3 and S3 compatible object stores, see:
+ *
+ * http://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-query-string-auth.html
+ */
+public class S3Presigner {
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final String TERMINATOR = "aws4_request";
+
+    private final String _accessKey;
+    private final String _secretKey;
+    private final String _region;
+
+    public S3Presigner(String accessKey, String secretKey, String region) {
+        _accessKey = accessKey;
+        _secretKey = secretKey;
+        _region = region;
+    }
+
+    /**
+     * @param endpoint the S3 endpoint, for example https://s3.amazonaws.com
+     * @param bucket the bucket name
+     * @param key the object key
+     * @param virtualHost true to address the bucket as a sub domain of
+     *     the endpoint, false to use path style addressing (which S3
+     *     compatible stand-ins usually require)
+     * @param expiresSeconds how long the URL is valid (at most 7 days)
+     * @param now the signing time
+     * @return the presigned URL
+     */
+    public URI presignGet(URI endpoint, String bucket, String key, boolean virtualHost, long expiresSeconds, Date now) {
+        String host = endpoint.getHost();
+        if ( virtualHost ) host = bucket + "." + host;
+        if ( endpoint.getPort() > 0 ) host = host + ":" + endpoint.getPort();
+        String path = virtualHost ? "/" + key : "/" + bucket + "/" + key;
+        path = uriEncode(path, false);
+
+        String amzDate = format("yyyyMMdd'T'HHmmss'Z'", now);
+        String scope = amzDate.substring(0, 8) + "/" + _region + "/" + SERVICE + "/" + TERMINATOR;
+
+        // Parameters must be in sorted order:
+        String query =
+            "X-Amz-Algorithm=" + ALGORITHM +
+            "&X-Amz-Credential=" + uriEncode(_accessKey + "/" + scope, true) +
+            "&X-Amz-Date=" + amzDate +
+            "&X-Amz-Expires=" + expiresSeconds +
+            "&X-Amz-SignedHeaders=host";
+
+        String canonicalRequest =
+            "GET\n" +
+            path + "\n" +
+            query + "\n" +
+            "host:" + host + "\n" +
+            "\n" +
+            "host\n" +
+            "UNSIGNED-PAYLOAD";
+
+        String stringToSign =
+            ALGORITHM + "\n" +
+            amzDate + "\n" +
+            scope + "\n" +
+            hex(sha256(canonicalRequest));
+
+        byte[] signingKey = hmac(("AWS4" + _secretKey).getBytes(StandardCharsets.UTF_8), amzDate.substring(0, 8));
+        signingKey = hmac(signingKey, _region);
+        signingKey = hmac(signingKey, SERVICE);
+        signingKey = hmac(signingKey, TERMINATOR);
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        return URI.create(endpoint.getScheme() + "://" + host + path + "?" + query + "&X-Amz-Signature=" + signature);
+    }
+
+    /**
+     * URI encodes as required by AWS: everything except the unreserved
+     * characters (and '/' when encoding a path) is percent encoded.
+     */
+    static String uriEncode(String str, boolean encodeSlash) {
+        StringBuilder sb = new StringBuilder();
+        for ( byte b : str.getBytes(StandardCharsets.UTF_8) ) {
+            char ch = (char)(b & 0xFF);
+            if ( (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') ||
+                 ch == '_' || ch == '-' || ch == '~' || ch == '.' || ( ch == '/' && ! encodeSlash ) )
+            {
+                sb.append(ch);
+            } else {
+                sb.append('%');
+                sb.append(String.format("%02X", (int)ch));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String format(String pattern, Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static byte[] sha256(String str) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(str.getBytes(StandardCharsets.UTF_8));
+        } catch ( Exception ex ) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch ( Exception ex ) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        return printHexBinary(bytes).toLowerCase();
+    }
+}
@@ -0,0 +1,58 @@
+package com.distelli.europa.util;
+
+import com.distelli.europa.EuropaConfiguration;
+import com.distelli.europa.db.StorageUsageDb;
+import com.distelli.europa.models.ContainerRepo;
+import com.distelli.europa.models.StorageUsage;
+import com.distelli.europa.registry.RegistryError;
+import com.distelli.europa.registry.RegistryErrorCode;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Enforces the repoQuotaBytes and domainQuotaBytes storage quotas using
+ * only the storage usage counters.
+ */
+@Singleton
+public class StorageQuota
+{
+    @Inject
+    private StorageUsageDb _storageUsageDb;
+    @Inject
+    private EuropaConfiguration _europaConfiguration;
+
+    public boolean isEnabled()
+    {
+        return _europaConfiguration.getRepoQuotaBytes() > 0 ||
+            _europaConfiguration.getDomainQuotaBytes() > 0;
+    }
+
+    /**
+     * @param repo the repo pushed to, null if it does not exist yet.
+     * @param additionalBytes the size of the push, 0 if unknown.
+     *
+     * @throws RegistryError if the repo or domain is at its quota, or the
+     *     push would exceed it.
+     */
+    public void check(String domain, ContainerRepo repo, long additionalBytes)
+    {
+        long repoQuota = _europaConfiguration.getRepoQuotaBytes();
+        if ( repoQuota > 0 && null != repo ) {
+            StorageUsage usage = _storageUsageDb.getRepoUsage(domain, repo.getId());
+            check(usage, repoQuota, additionalBytes, "repository "+repo.getName());
+        }
+        long domainQuota = _europaConfiguration.getDomainQuotaBytes();
+        if ( domainQuota > 0 ) {
+            check(_storageUsageDb.getDomainUsage(domain), domainQuota, additionalBytes, "account");
+        }
+    }
+
+    private void check(StorageUsage usage, long quota, long additionalBytes, String name)
+    {
+        long used = usage.getTotalBytes();
+        if ( used < quota && used + additionalBytes <= quota ) return;
+        throw new RegistryError("Storage quota of "+quota+" bytes exceeded by the "+name+
+                                " ("+used+" bytes used)",
+                                RegistryErrorCode.DENIED);
+    }
+}
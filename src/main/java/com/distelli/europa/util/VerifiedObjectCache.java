@@ -0,0 +1,93 @@
+package com.distelli.europa.util;
+
+import com.distelli.objectStore.ObjectKey;
+import com.distelli.objectStore.ObjectMetadata;
+import com.distelli.objectStore.ObjectStore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Singleton;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Remembers the content length of objects which were recently verified to
+ * exist in the object store, so the pull and exists paths do not need to
+ * HEAD the object store on every request.
+ *
+ * Only needed for DB rows which predate recording the object size in the
+ * DB. Registry objects are immutable, but they can be deleted, hence the
+ * entries expire.
+ */
+@Log4j
+@Singleton
+public class VerifiedObjectCache
+{
+    private static final int MAX_ENTRIES = 10000;
+    private static final long TTL_MILLIS = 10*60*1000;
+
+    private static class Entry {
+        private final long _contentLength;
+        private final long _verifiedAt;
+        private Entry(long contentLength, long verifiedAt) {
+            _contentLength = contentLength;
+            _verifiedAt = verifiedAt;
+        }
+    }
+
+    private final Map<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * @return the content length of the object, or null if it does not
+     *     exist in the object store.
+     */
+    public Long getContentLength(ObjectStore objectStore, ObjectKey objKey)
+    {
+        String key = toKey(objKey);
+        long now = System.currentTimeMillis();
+        synchronized ( this ) {
+            Entry entry = _entries.get(key);
+            if ( null != entry && now - entry._verifiedAt < TTL_MILLIS ) {
+                return entry._contentLength;
+            }
+        }
+        ObjectMetadata meta = objectStore.head(objKey);
+        synchronized ( this ) {
+            if ( null == meta ) {
+                _entries.remove(key);
+                return null;
+            }
+            _entries.put(key, new Entry(meta.getContentLength(), now));
+        }
+        return meta.getContentLength();
+    }
+
+    public synchronized void invalidate(ObjectKey objKey)
+    {
+        _entries.remove(toKey(objKey));
+    }
+
+    /**
+     * Called when reading an object failed, logs if the object store is
+     * inconsistent with the DB.
+     */
+    public void readFailed(ObjectStore objectStore, ObjectKey objKey)
+    {
+        invalidate(objKey);
+        try {
+            if ( null == objectStore.head(objKey) ) {
+                log.error("Object store is inconsistent with DB, missing "+objKey);
+            }
+        } catch ( Throwable ex ) {
+            log.error("Unable to HEAD "+objKey+": "+ex.getMessage(), ex);
+        }
+    }
+
+    private static String toKey(ObjectKey objKey)
+    {
+        return objKey.getBucket() + "/" + objKey.getKey();
+    }
+}
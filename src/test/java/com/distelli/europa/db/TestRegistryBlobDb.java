@@ -0,0 +1,139 @@
+package com.distelli.europa.db;
+
+import com.distelli.europa.EuropaConfiguration;
+import com.distelli.europa.models.RegistryBlob;
+import com.distelli.europa.models.RegistryBlobPart;
+import java.io.File;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.UUID;
+import javax.inject.Inject;
+import com.distelli.europa.guice.EuropaInjectorModule;
+import com.distelli.persistence.impl.PersistenceModule;
+import com.distelli.objectStore.impl.ObjectStoreModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import com.distelli.utils.Log4JConfigurator;
+import static org.junit.Assert.*;
+
+public class TestRegistryBlobDb {
+    private static Injector INJECTOR = createInjector();
+
+    private static Injector createInjector() {
+        String path = System.getenv("EUROPA_CONFIG");
+        EuropaConfiguration config = null;
+        if(path != null) {
+            File file = new File(path);
+            if(!file.exists())
+                throw(new IllegalStateException("Invalid value for EUROPA_CONFIG env var: "+path));
+            config = EuropaConfiguration.fromFile(file);
+        } else {
+            config = EuropaConfiguration.fromEnvironment();
+        }
+        return Guice.createInjector(
+            new PersistenceModule(),
+            new ObjectStoreModule(),
+            new EuropaInjectorModule(
+                config));
+    }
+
+    @Inject
+    private RegistryBlobDb blobDb;
+
+    @Before
+    public void before() throws Exception {
+        if ( null == INJECTOR ) {
+            throw new RuntimeException("EUROPA_CONFIG environment variable must point to valid file");
+        }
+        INJECTOR.injectMembers(this);
+    }
+
+    @BeforeClass
+    public static void beforeClass()
+    {
+        Log4JConfigurator.configure(true);
+        Log4JConfigurator.setLogLevel("com.zaxxer.hikari", "INFO");
+    }
+
+    private static RegistryBlobPart part(int partNum, long size) {
+        return RegistryBlobPart.builder()
+            .partNum(partNum)
+            .partId("etag-"+partNum)
+            .chunkSize(size)
+            .build();
+    }
+
+    @Test
+    public void testReservedPartNumsAreNotReused() throws Exception {
+        RegistryBlob blob = blobDb.newRegistryBlob(UUID.randomUUID().toString());
+        try {
+            blobDb.setUploadId(blob.getBlobId(), "upload");
+            RegistryBlob writerA = blobDb.getRegistryBlobById(blob.getBlobId());
+            RegistryBlob writerB = blobDb.getRegistryBlobById(blob.getBlobId());
+            int partA = blobDb.reservePartNums(writerA, 1);
+            int partB = blobDb.reservePartNums(writerB, 2);
+            assertEquals(1, partA);
+            assertEquals(2, partB);
+        } finally {
+            blobDb.forgetBlob(blob.getBlobId());
+        }
+    }
+
+    @Test
+    public void testTakenPartNumsAreNotReused() throws Exception {
+        RegistryBlob blob = blobDb.newRegistryBlob(UUID.randomUUID().toString());
+        try {
+            blobDb.setUploadId(blob.getBlobId(), "upload");
+            RegistryBlob session = blobDb.getUploadSession(blob.getBlobId());
+            int first = blobDb.takePartNums(session, 1);
+            int second = blobDb.takePartNums(blobDb.getUploadSession(blob.getBlobId()), 1);
+            assertEquals(1, first);
+            assertEquals(2, second);
+            // Another node reserves after the block reserved by this node:
+            RegistryBlob other = blobDb.getRegistryBlobById(blob.getBlobId());
+            assertTrue(blobDb.reservePartNums(other, 1) > second + 1);
+        } finally {
+            blobDb.forgetBlob(blob.getBlobId());
+        }
+    }
+
+    @Test
+    public void testLosingWriterRecordsNoParts() throws Exception {
+        RegistryBlob blob = blobDb.newRegistryBlob(UUID.randomUUID().toString());
+        try {
+            blobDb.setUploadId(blob.getBlobId(), "upload");
+            RegistryBlob writerA = blobDb.getRegistryBlobById(blob.getBlobId());
+            RegistryBlob writerB = blobDb.getRegistryBlobById(blob.getBlobId());
+            int partA = blobDb.reservePartNums(writerA, 1);
+            int partB = blobDb.reservePartNums(writerB, 1);
+
+            blobDb.addParts(writerA, Arrays.asList(part(partA, 10)), new byte[]{1});
+            try {
+                blobDb.addParts(writerB, Arrays.asList(part(partB, 20)), new byte[]{2});
+                fail("Expected ConcurrentModificationException");
+            } catch ( ConcurrentModificationException ex ) {}
+
+            RegistryBlob current = blobDb.getRegistryBlobById(blob.getBlobId());
+            assertEquals(Integer.valueOf(1), current.getPartCount());
+            assertEquals(Long.valueOf(10), current.getPartsSize());
+            assertArrayEquals(new byte[]{1}, current.getMdEncodedState());
+            List<RegistryBlobPart> parts = blobDb.getParts(current);
+            assertEquals(1, parts.size());
+            assertEquals(Integer.valueOf(partA), parts.get(0).getPartNum());
+
+            // The loser can not reserve more parts based on its stale state:
+            try {
+                blobDb.reservePartNums(writerB, 1);
+                fail("Expected ConcurrentModificationException");
+            } catch ( ConcurrentModificationException ex ) {}
+            // ...but the current state can, without reusing the loser's part number:
+            assertTrue(blobDb.reservePartNums(current, 1) > partB);
+        } finally {
+            blobDb.forgetBlob(blob.getBlobId());
+        }
+    }
+}
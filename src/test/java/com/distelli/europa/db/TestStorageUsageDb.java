@@ -0,0 +1,118 @@
+package com.distelli.europa.db;
+
+import com.distelli.europa.models.RegistryBlob;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestStorageUsageDb {
+    private static final String M1 = "sha256:1111111111111111111111111111111111111111111111111111111111111111";
+    private static final String M2 = "sha256:2222222222222222222222222222222222222222222222222222222222222222";
+
+    // A blob as returned by add/removeReferences(), with the references after the update:
+    private static RegistryBlob blob(Long size, String... manifestIds) {
+        return RegistryBlob.builder()
+            .blobId("blob")
+            .size(size)
+            .manifestIds(new HashSet<>(Arrays.asList(manifestIds)))
+            .build();
+    }
+
+    private static Map<String, long[]> added(String domain, String repoId, RegistryBlob... blobs) {
+        return StorageUsageDb.computeDeltas(domain, repoId, Arrays.asList(blobs), 1);
+    }
+
+    private static Map<String, long[]> removed(String domain, String repoId, RegistryBlob... blobs) {
+        return StorageUsageDb.computeDeltas(domain, repoId, Arrays.asList(blobs), -1);
+    }
+
+    @Test
+    public void testAddUniqueBlob() {
+        Map<String, long[]> deltas = added("d1", "a", blob(10L, "d1/a/"+M1));
+        assertEquals(2, deltas.size());
+        assertArrayEquals(new long[]{1, 10, 0}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{1, 10, 0}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testRemoveUniqueBlob() {
+        Map<String, long[]> deltas = removed("d1", "a", blob(10L));
+        assertArrayEquals(new long[]{-1, -10, 0}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{-1, -10, 0}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testBlobAlreadyInRepoIsNotCountedTwice() {
+        Map<String, long[]> deltas = added("d1", "a", blob(10L, "d1/a/"+M1, "d1/a/"+M2));
+        assertArrayEquals(new long[]{1, 0, 0}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{1, 0, 0}, deltas.get("d1"));
+
+        // Removing one of the manifests keeps the blob counted:
+        deltas = removed("d1", "a", blob(10L, "d1/a/"+M1));
+        assertArrayEquals(new long[]{-1, 0, 0}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{-1, 0, 0}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testUniqueBecomesShared() {
+        Map<String, long[]> deltas = added("d1", "b", blob(10L, "d1/a/"+M1, "d1/b/"+M2));
+        assertArrayEquals(new long[]{1, 0, 10}, deltas.get("d1/b"));
+        assertArrayEquals(new long[]{0, -10, 10}, deltas.get("d1/a"));
+        // Still unique to the domain:
+        assertArrayEquals(new long[]{1, 0, 0}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testSharedBecomesUnique() {
+        Map<String, long[]> deltas = removed("d1", "b", blob(10L, "d1/a/"+M1));
+        assertArrayEquals(new long[]{-1, 0, -10}, deltas.get("d1/b"));
+        assertArrayEquals(new long[]{0, 10, -10}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{-1, 0, 0}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testSharedWithManyStaysShared() {
+        Map<String, long[]> deltas = added("d1", "c", blob(10L, "d1/a/"+M1, "d1/b/"+M1, "d1/c/"+M1));
+        assertArrayEquals(new long[]{1, 0, 10}, deltas.get("d1/c"));
+        assertNull(deltas.get("d1/a"));
+        assertNull(deltas.get("d1/b"));
+
+        deltas = removed("d1", "c", blob(10L, "d1/a/"+M1, "d1/b/"+M1));
+        assertArrayEquals(new long[]{-1, 0, -10}, deltas.get("d1/c"));
+        assertNull(deltas.get("d1/a"));
+        assertNull(deltas.get("d1/b"));
+    }
+
+    @Test
+    public void testSharedAcrossDomains() {
+        Map<String, long[]> deltas = added("d2", "c", blob(10L, "d1/a/"+M1, "d2/c/"+M1));
+        assertArrayEquals(new long[]{1, 0, 10}, deltas.get("d2/c"));
+        assertArrayEquals(new long[]{0, -10, 10}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{1, 0, 10}, deltas.get("d2"));
+        assertArrayEquals(new long[]{0, -10, 10}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testLegacyReferencesAreIgnored() {
+        Map<String, long[]> deltas = added("d1", "a", blob(10L, M1, "d1/a/"+M1));
+        assertEquals(2, deltas.size());
+        assertArrayEquals(new long[]{1, 10, 0}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{1, 10, 0}, deltas.get("d1"));
+    }
+
+    @Test
+    public void testUnfinishedBlobsAreSkipped() {
+        Map<String, long[]> deltas = added("d1", "a", blob(null, "d1/a/"+M1), null);
+        assertArrayEquals(new long[]{1, 0, 0}, deltas.get("d1/a"));
+        assertArrayEquals(new long[]{1, 0, 0}, deltas.get("d1"));
+
+        deltas = StorageUsageDb.computeDeltas("d1", "a", Collections.emptyList(), -1);
+        assertArrayEquals(new long[]{-1, 0, 0}, deltas.get("d1/a"));
+    }
+}
@@ -0,0 +1,62 @@
+package com.distelli.europa.security;
+
+import java.security.MessageDigest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class TestResumableSha256 {
+    private static byte[] input(int length) {
+        byte[] input = new byte[length];
+        for ( int i=0; i < length; i++ ) input[i] = (byte)(i * 31 + 7);
+        return input;
+    }
+
+    private static byte[] sha256(byte[] input) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(input);
+    }
+
+    // Digests input[0,split) with "first", then resumes with "second":
+    private static byte[] resume(byte[] input, int split, boolean firstJdk, boolean secondJdk) {
+        ResumableSha256 first = firstJdk ? new JdkSha256(null) : new BouncyCastleSha256(null);
+        first.update(input, 0, split);
+        byte[] state = first.getEncodedState();
+        ResumableSha256 second = secondJdk ? new JdkSha256(state) : new BouncyCastleSha256(state);
+        second.update(input, split, input.length - split);
+        return second.digest();
+    }
+
+    @Test
+    public void testBouncyCastle() throws Exception {
+        byte[] input = input(200);
+        for ( int split=0; split <= input.length; split++ ) {
+            assertThat(resume(input, split, false, false), equalTo(sha256(input)));
+        }
+    }
+
+    @Test
+    public void testJdkStateIsCompatible() throws Exception {
+        assumeTrue(JdkSha256.isAvailable());
+        byte[] input = input(200);
+        for ( int split=0; split <= input.length; split++ ) {
+            assertThat(resume(input, split, true, true), equalTo(sha256(input)));
+            assertThat(resume(input, split, true, false), equalTo(sha256(input)));
+            assertThat(resume(input, split, false, true), equalTo(sha256(input)));
+        }
+    }
+
+    @Test
+    public void testJdkResumesLegacyState() throws Exception {
+        assumeTrue(JdkSha256.isAvailable());
+        // States persisted before engines were pluggable:
+        byte[] input = input(1000);
+        SHA256Digest legacy = new SHA256Digest();
+        legacy.update(input, 0, 333);
+        ResumableSha256 digest = ResumableSha256.newInstance(legacy.getEncodedState());
+        digest.update(input, 333, input.length - 333);
+        assertThat(digest.digest(), equalTo(sha256(input)));
+    }
+}
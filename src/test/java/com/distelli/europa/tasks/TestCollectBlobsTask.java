@@ -0,0 +1,42 @@
+package com.distelli.europa.tasks;
+
+import com.distelli.europa.models.RegistryBlob;
+import org.junit.Test;
+
+import static com.distelli.europa.tasks.CollectBlobsTask.GRACE_PERIOD_MS;
+import static com.distelli.europa.tasks.CollectBlobsTask.isPastGracePeriod;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TestCollectBlobsTask {
+    private static final long NOW = 1500000000000L;
+
+    private static RegistryBlob unreferencedSince(Long time) {
+        return RegistryBlob.builder()
+            .blobId("blob")
+            .digest("sha256:0000000000000000000000000000000000000000000000000000000000000000")
+            .unreferencedTime(time)
+            .build();
+    }
+
+    @Test
+    public void testReferencedBlobIsKept() {
+        assertThat(isPastGracePeriod(unreferencedSince(null), NOW), equalTo(false));
+    }
+
+    @Test
+    public void testBlobInGracePeriodIsKept() {
+        assertThat(isPastGracePeriod(unreferencedSince(NOW), NOW), equalTo(false));
+        assertThat(isPastGracePeriod(unreferencedSince(NOW - GRACE_PERIOD_MS + 1), NOW), equalTo(false));
+        // Exactly at the end of the grace period:
+        assertThat(isPastGracePeriod(unreferencedSince(NOW - GRACE_PERIOD_MS), NOW), equalTo(false));
+        // Clock skew between nodes:
+        assertThat(isPastGracePeriod(unreferencedSince(NOW + 1000), NOW), equalTo(false));
+    }
+
+    @Test
+    public void testBlobPastGracePeriodIsCollected() {
+        assertThat(isPastGracePeriod(unreferencedSince(NOW - GRACE_PERIOD_MS - 1), NOW), equalTo(true));
+        assertThat(isPastGracePeriod(unreferencedSince(0L), NOW), equalTo(true));
+    }
+}
@@ -0,0 +1,63 @@
+package com.distelli.europa.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TestByteRange {
+    @Test
+    public void testSingleRange() {
+        ByteRange range = ByteRange.parse("bytes=0-99", 1000);
+        assertThat(range.isSatisfiable(), equalTo(true));
+        assertThat(range.getFirst(), equalTo(0L));
+        assertThat(range.getLast(), equalTo(99L));
+        assertThat(range.getLength(), equalTo(100L));
+        assertThat(range.toContentRange(), equalTo("bytes 0-99/1000"));
+    }
+
+    @Test
+    public void testOpenEndedRange() {
+        ByteRange range = ByteRange.parse("bytes=900-", 1000);
+        assertThat(range.toContentRange(), equalTo("bytes 900-999/1000"));
+        // Last byte past the end is truncated:
+        range = ByteRange.parse("bytes=900-5000", 1000);
+        assertThat(range.toContentRange(), equalTo("bytes 900-999/1000"));
+    }
+
+    @Test
+    public void testSuffixRange() {
+        ByteRange range = ByteRange.parse("bytes=-100", 1000);
+        assertThat(range.toContentRange(), equalTo("bytes 900-999/1000"));
+        range = ByteRange.parse("bytes=-5000", 1000);
+        assertThat(range.toContentRange(), equalTo("bytes 0-999/1000"));
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertThat(ByteRange.parse("bytes=1000-", 1000).isSatisfiable(), equalTo(false));
+        assertThat(ByteRange.parse("bytes=-0", 1000).isSatisfiable(), equalTo(false));
+        assertThat(ByteRange.parse("bytes=0-0", 0).isSatisfiable(), equalTo(false));
+        assertThat(ByteRange.parse("bytes=1000-", 1000).toContentRange(), equalTo("bytes */1000"));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertThat(ByteRange.parse(null, 1000), nullValue());
+        assertThat(ByteRange.parse("bytes=5-1", 1000), nullValue());
+        assertThat(ByteRange.parse("bytes=0-1,5-6", 1000), nullValue());
+        assertThat(ByteRange.parse("items=0-1", 1000), nullValue());
+        assertThat(ByteRange.parse("bytes=-", 1000), nullValue());
+        assertThat(ByteRange.parse("bytes=99999999999999999999-", 1000), nullValue());
+    }
+
+    @Test
+    public void testIfRange() {
+        String etag = "\"sha256:abc\"";
+        assertThat(ByteRange.ifRangeMatches(null, etag), equalTo(true));
+        assertThat(ByteRange.ifRangeMatches(etag, etag), equalTo(true));
+        assertThat(ByteRange.ifRangeMatches("\"sha256:def\"", etag), equalTo(false));
+        assertThat(ByteRange.ifRangeMatches("Wed, 21 Oct 2015 07:28:00 GMT", etag), equalTo(false));
+    }
+}
@@ -0,0 +1,44 @@
+package com.distelli.europa.util;
+
+import com.distelli.europa.EuropaConfiguration;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TestManifestCache {
+    private static ManifestCache newCache(long maxBytes, boolean offHeap) {
+        EuropaConfiguration config = new EuropaConfiguration();
+        config.setManifestCacheMaxBytes(maxBytes);
+        config.setManifestCacheOffHeap(offHeap);
+        return new ManifestCache(config);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ManifestCache cache = newCache(10, false);
+        cache.put("sha256:a", "application/json", new byte[4]);
+        cache.put("sha256:b", "application/json", new byte[4]);
+        cache.get("sha256:a");
+        cache.put("sha256:c", "application/json", new byte[4]);
+        assertThat(cache.get("sha256:b"), nullValue());
+        assertThat(cache.get("sha256:a").getContentLength(), equalTo(4L));
+        assertThat(cache.get("sha256:c").getContentType(), equalTo("application/json"));
+    }
+
+    @Test
+    public void testOffHeap() {
+        ManifestCache cache = newCache(1024, true);
+        cache.put("sha256:a", "text/plain", new byte[] {1, 2, 3});
+        assertThat(cache.get("sha256:a").getContent(), equalTo(new byte[] {1, 2, 3}));
+        assertThat(cache.get("sha256:a").getContentLength(), equalTo(3L));
+    }
+
+    @Test
+    public void testTooLarge() {
+        ManifestCache cache = newCache(2, false);
+        assertThat(cache.put("sha256:a", "text/plain", new byte[3]).getContentLength(), equalTo(3L));
+        assertThat(cache.get("sha256:a"), nullValue());
+    }
+}
@@ -0,0 +1,43 @@
+package com.distelli.europa.util;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TestManifestInfo {
+    private static ManifestInfo parse(String json) throws Exception {
+        byte[] content = json.getBytes(UTF_8);
+        return ManifestInfo.parse(content, 0, content.length);
+    }
+
+    @Test
+    public void testSchema2() throws Exception {
+        ManifestInfo info = parse(
+            "{\"schemaVersion\":2,\"mediaType\":\"application/vnd.docker.distribution.manifest.v2+json\"," +
+            "\"config\":{\"size\":7,\"digest\":\"sha256:c\",\"annotations\":{\"digest\":\"x\"}}," +
+            "\"layers\":[{\"digest\":\"sha256:a\",\"urls\":[\"u\"]},{\"size\":1},{\"digest\":\"sha256:b\"}]," +
+            "\"fsLayers\":[{\"blobSum\":\"sha256:ignored\"}]}");
+        assertThat(info.getMediaType(), equalTo("application/vnd.docker.distribution.manifest.v2+json"));
+        assertThat(info.getDigests(), equalTo(new TreeSet<>(Arrays.asList("", "sha256:a", "sha256:b", "sha256:c"))));
+    }
+
+    @Test
+    public void testSchema1() throws Exception {
+        ManifestInfo info = parse(
+            "{\"schemaVersion\":1,\"history\":[{\"v1Compatibility\":\"{}\"}]," +
+            "\"fsLayers\":[{\"blobSum\":\"sha256:a\"},{\"blobSum\":\"sha256:a\"}]," +
+            "\"signatures\":[{\"header\":{\"jwk\":{}}}]}");
+        assertThat(info.getMediaType(), nullValue());
+        assertThat(info.getDigests(), equalTo(new TreeSet<>(Arrays.asList("sha256:a"))));
+    }
+
+    @Test(expected=com.fasterxml.jackson.core.JsonProcessingException.class)
+    public void testInvalid() throws Exception {
+        parse("{\"layers\":[");
+    }
+}